@@ -0,0 +1,147 @@
+import java.math.BigInteger;
+
+/** An instance holds measures of the shape of a cascade (a SharingTree),
+ * computed in time proportional to its size:
+ * <br> - its structural virality: the average distance (number of edges)
+ *        between two different people of the tree,
+ * <br> - its branching distribution: how many people have k children, and
+ * <br> - its depth distribution: how many people are at depth d.
+ * <p>
+ * The structural virality is not computed pair by pair. An edge from a
+ * person to a child whose subtree has s of the n people lies on the path
+ * between exactly s * (n - s) pairs, so the sum of the distances of all pairs
+ * is the sum of s * (n - s) over all edges. The subtree sizes are summed in
+ * one pass over the people in reverse preorder (children before parents),
+ * without recursion, so cascades of millions of people of any depth are fine.
+ * The sum passes Long.MAX_VALUE at about 3.8 million people (for a chain),
+ * so it is kept exactly in 128 bits: each term is less than 2^62 and there
+ * are fewer than 2^31, so the sum is less than 2^93.
+ * <p>
+ * The measures are of the tree at the time the instance was made. */
+public class CascadeMetrics {
+
+    /** The number of people in the tree. */
+    private final int size;
+
+    /** The sum of the distances between all pairs of people is
+     * sumHigh * 2^64 + sumLow, with sumLow taken as unsigned. */
+    private final long sumHigh, sumLow;
+
+    /** The sum of the distances between all pairs of people, rounded. */
+    private final double distanceSum;
+
+    /** branching[k] is the number of people with k children. */
+    private final int[] branching;
+
+    /** depths[d] is the number of people at depth d. */
+    private final int[] depths;
+
+    /** Constructor: the metrics of tree st (or of the subtree st, if st is
+     * not the root of the whole tree).
+     * Throw an IllegalArgumentException if st is null. */
+    public CascadeMetrics(SharingTree st) throws IllegalArgumentException {
+        this(freeze(st));
+    }
+
+    /** Constructor: the metrics of frozen tree t.
+     * Throw an IllegalArgumentException if t is null. */
+    public CascadeMetrics(FrozenSharingTree t) throws IllegalArgumentException {
+        if (t == null)
+            throw new IllegalArgumentException("Can't compute CascadeMetrics of null");
+        size= t.size();
+
+        // People are numbered in preorder, so the children of a person come
+        // after it: going backwards, a subtree is complete when its root is reached
+        int[] subtree= new int[size];
+        int[] kids= new int[size];
+        int maxKids= 0;
+        // The sum is hi * 2^64 + lo, lo unsigned: adding to lo carries into
+        // hi exactly when the unsigned result is less than what was added
+        long hi= 0;
+        long lo= 0;
+        for (int i= size - 1; i > 0; i--) {
+            subtree[i]++;
+            long pairs= (long) subtree[i] * (size - subtree[i]);
+            lo= lo + pairs;
+            if (Long.compareUnsigned(lo, pairs) < 0) hi++;
+            int p= t.parent(i);
+            subtree[p]+= subtree[i];
+            kids[p]++;
+            maxKids= Math.max(maxKids, kids[p]);
+        }
+        sumHigh= hi;
+        sumLow= lo;
+        distanceSum= distanceSumExact().doubleValue();
+
+        branching= new int[maxKids + 1];
+        for (int k : kids) {
+            branching[k]++;
+        }
+        depths= new int[t.maxDepth() + 1];
+        for (int d= 0; d < depths.length; d++) {
+            depths[d]= t.widthAtDepth(d);
+        }
+    }
+
+    /** Return a frozen copy of st. Throw an IllegalArgumentException if st is null. */
+    private static FrozenSharingTree freeze(SharingTree st) {
+        if (st == null)
+            throw new IllegalArgumentException("Can't compute CascadeMetrics of null");
+        return st.freeze();
+    }
+
+    /** Return the number of people in the tree. */
+    public int size() {
+        return size;
+    }
+
+    /** Return the structural virality of the tree: the average distance
+     * between two different people of it (0 if it has only one person).
+     * It is (n + 1) / 3 for a chain of n people and close to 2 for a star. */
+    public double structuralVirality() {
+        if (size < 2) return 0;
+        return distanceSum / ((double) size * (size - 1) / 2);
+    }
+
+    /** Return the sum of the distances between all pairs of people of the
+     * tree (its Wiener index), rounded to the nearest double. */
+    public double distanceSum() {
+        return distanceSum;
+    }
+
+    /** Return the sum of the distances between all pairs of people of the
+     * tree (its Wiener index), exactly. */
+    public BigInteger distanceSumExact() {
+        return BigInteger.valueOf(sumHigh).shiftLeft(64)
+                .add(new BigInteger(Long.toUnsignedString(sumLow)));
+    }
+
+    /** Return the branching distribution of the tree: element k is the
+     * number of people with k children, for k from 0 to the largest number
+     * of children of a person. */
+    public int[] branchingDistribution() {
+        return branching.clone();
+    }
+
+    /** Return the depth distribution of the tree: element d is the number of
+     * people at depth d, for d from 0 to the maximum depth. */
+    public int[] depthDistribution() {
+        return depths.clone();
+    }
+
+    /** Return the average number of children of a person who has at least
+     * one (0 if the tree has only one person). */
+    public double meanBranching() {
+        int parents= size - branching[0];
+        return parents == 0 ? 0 : (double) (size - 1) / parents;
+    }
+
+    /** Return the average depth of a person in the tree. */
+    public double meanDepth() {
+        double sum= 0;
+        for (int d= 0; d < depths.length; d++) {
+            sum= sum + (double) d * depths[d];
+        }
+        return sum / size;
+    }
+}
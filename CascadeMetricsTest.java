@@ -0,0 +1,141 @@
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CascadeMetricsTest {
+
+    private static Network n;
+    private static Person[] people;
+
+    @BeforeClass
+    public static void setup(){
+        n= new Network();
+        people= CascadeShape.people(n, 200);
+    }
+
+    @Test
+    public void testSingleNode() {
+        CascadeMetrics m= new CascadeMetrics(new SharingTree(people[0]));
+        assertEquals(1, m.size());
+        assertEquals(0, m.structuralVirality(), 0);
+        assertArrayEquals(new int[]{1}, m.branchingDistribution());
+        assertArrayEquals(new int[]{1}, m.depthDistribution());
+        assertEquals(0, m.meanBranching(), 0);
+        assertEquals(0, m.meanDepth(), 0);
+    }
+
+    @Test
+    public void testChainAndStar() {
+        CascadeMetrics chain= new CascadeMetrics(CascadeShape.CHAIN.build(people, 0));
+        assertEquals((200 + 1) / 3.0, chain.structuralVirality(), 1e-9);
+        assertArrayEquals(new int[]{1, 199}, chain.branchingDistribution());
+        assertEquals(200, chain.depthDistribution().length);
+        assertEquals(199 / 2.0, chain.meanDepth(), 1e-9);
+
+        CascadeMetrics star= new CascadeMetrics(CascadeShape.STAR.build(people, 0));
+        assertEquals(2 * 199 / 200.0, star.structuralVirality(), 1e-9);
+        assertEquals(1, star.branchingDistribution()[199]);
+        assertEquals(199, star.branchingDistribution()[0]);
+        assertArrayEquals(new int[]{1, 199}, star.depthDistribution());
+        assertEquals(199, star.meanBranching(), 1e-9);
+    }
+
+    /** Compare with the average over all pairs of the distance computed
+     * with depth and getSharedAncestor, on random trees and a subtree. */
+    @Test
+    public void testPairwise() {
+        for (long seed= 0; seed < 5; seed++) {
+            SharingTree st= CascadeShape.RANDOM.build(people, seed);
+            checkPairwise(st);
+            checkPairwise(st.getTree(people[1]));
+        }
+    }
+
+    /** Check the structural virality of st against the pairwise definition. */
+    private static void checkPairwise(SharingTree st) {
+        List<Person> all= new ArrayList<>();
+        for (Person p : people) {
+            if (st.contains(p)) all.add(p);
+        }
+        long sum= 0;
+        for (int i= 0; i < all.size(); i++) {
+            for (int j= i + 1; j < all.size(); j++) {
+                Person a= all.get(i), b= all.get(j);
+                Person c= st.getSharedAncestor(a, b);
+                sum+= st.depth(a) + st.depth(b) - 2 * st.depth(c);
+            }
+        }
+        CascadeMetrics m= new CascadeMetrics(st);
+        assertEquals(all.size(), m.size());
+        assertEquals(sum, m.distanceSum(), 0);
+        if (all.size() > 1) {
+            assertEquals(sum / (all.size() * (all.size() - 1) / 2.0), m.structuralVirality(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testLarge() {
+        Person[] ps= CascadeShape.people(n, 1_000_000);
+        SharingTree st= CascadeShape.CHAIN.build(ps, 0);
+        CascadeMetrics m= new CascadeMetrics(st);
+        assertEquals((1_000_000 + 1) / 3.0, m.structuralVirality(), 1e-6);
+        assertEquals(1_000_000, m.depthDistribution().length);
+    }
+
+    /** A chain just long enough that its Wiener index n (n^2 - 1) / 6 does
+     * not fit in a long. It is frozen directly, as a SharingTree of this size
+     * takes much longer to build. */
+    @Test
+    public void testPastLong() {
+        int n= 3_811_001;
+        Person[] ps= CascadeShape.people(new Network(), n);
+        int[] parent= new int[n];
+        int[] depth= new int[n];
+        int[] childStart= new int[n + 1];
+        int[] childIds= new int[n - 1];
+        for (int i= 0; i < n; i++) {
+            parent[i]= i - 1;
+            depth[i]= i;
+            childStart[i + 1]= Math.min(i + 1, n - 1);
+            if (i > 0) childIds[i - 1]= i;
+        }
+        FrozenSharingTree t= new FrozenSharingTree(ps, parent, depth, new long[n],
+                childStart, childIds);
+        CascadeMetrics m= new CascadeMetrics(t);
+
+        BigInteger big= BigInteger.valueOf(n);
+        BigInteger sum= big.multiply(big.multiply(big).subtract(BigInteger.ONE))
+                .divide(BigInteger.valueOf(6));
+        assertTrue(sum.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0);
+        assertEquals(sum, m.distanceSumExact());
+        assertEquals(sum.doubleValue(), m.distanceSum(), 0);
+        assertEquals((n + 1) / 3.0, m.structuralVirality(), 1e-6);
+    }
+
+    @Test
+    public void testDistributions() {
+        Random rnd= new Random(3);
+        SharingTree st= CascadeShape.RANDOM.build(people, rnd.nextLong());
+        CascadeMetrics m= new CascadeMetrics(st);
+        int[] depths= m.depthDistribution();
+        assertEquals(st.maxDepth() + 1, depths.length);
+        for (int d= 0; d < depths.length; d++) {
+            assertEquals(st.widthAtDepth(d), depths[d]);
+        }
+        int[] branching= m.branchingDistribution();
+        int people= 0, edges= 0;
+        for (int k= 0; k < branching.length; k++) {
+            people+= branching[k];
+            edges+= k * branching[k];
+        }
+        assertEquals(st.size(), people);
+        assertEquals(st.size() - 1, edges);
+        assertTrue(branching[branching.length - 1] > 0);
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.Random;
+
+/** The shapes of the SharingTrees the benchmarks are run on. Each shape
+ * builds a tree of given people by inserting them in order, choosing the
+ * parent of each person from the people before it. */
+public enum CascadeShape {
+    /** Each person's parent is chosen at random from the people before it. */
+    RANDOM,
+    /** A complete binary tree. */
+    BALANCED,
+    /** A complete tree in which each node has (at most) 64 children. */
+    WIDE,
+    /** Everybody saw the post from the root. */
+    STAR,
+    /** Each person saw the post from the person before it. */
+    CHAIN;
+
+    /** Return the index of the parent of people[k] in a tree of this shape.
+     * Precondition: k > 0. */
+    int parent(int k, Random rnd) {
+        switch (this) {
+            case RANDOM:   return rnd.nextInt(k);
+            case BALANCED: return (k - 1) / 2;
+            case WIDE:     return (k - 1) / 64;
+            case STAR:     return 0;
+            default:       return k - 1;
+        }
+    }
+
+    /** Return a tree of this shape of all of people, with root people[0].
+     * seed seeds the choices of a RANDOM tree. */
+    public SharingTree build(Person[] people, long seed) {
+        Random rnd= new Random(seed);
+        SharingTree st= new SharingTree(people[0]);
+        for (int k= 1; k < people.length; k++) {
+            st.insert(people[parent(k, rnd)], people[k]);
+        }
+        return st;
+    }
+
+    /** Return n new people of network net, named p0, p1, ... */
+    public static Person[] people(Network net, int n) {
+        Person[] people= new Person[n];
+        for (int k= 0; k < n; k++) {
+            people[k]= new Person("p" + k, net, 0);
+        }
+        return people;
+    }
+}
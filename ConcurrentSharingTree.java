@@ -0,0 +1,188 @@
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** An instance is a sharing tree (see SharingTree) into which many threads
+ * can insert, and which they can query, at the same time without locking.
+ * <p>
+ * Each Person is mapped to its node by a ConcurrentHashMap, and putIfAbsent
+ * on that map decides which of several concurrent inserts of the same
+ * Person wins, so a Person is in the tree at most once. Each node has a
+ * concurrent set of children and a final parent link and depth, so the
+ * queries that follow parent links (depth, getParent, getSharingRoute) see
+ * a consistent route as soon as a Person is in the tree.
+ * <p>
+ * A node is put in the map before it is linked into its parent's children
+ * and counted in maxDepth, since only the insert that wins may link it.
+ * Whoever finds a node that is not linked yet (a query, a losing insert of
+ * the same Person or an insert below it) links it first, so once contains(c)
+ * is true, or an insert of c or below c has returned or thrown, c is in
+ * getChildrenCount of its parent, in maxDepth and in the toSharingTree calls
+ * that start after that. size counts the inserts that have put their node
+ * in the map, so it can include one that no query has seen yet.
+ * Traversals (toSharingTree) are weakly consistent: they see all inserts
+ * that finished before they started and may see some that happen during them.
+ * <p>
+ * The queries are about the whole tree. */
+public class ConcurrentSharingTree {
+
+    /** The node of the root of the tree. */
+    private final Node top;
+
+    /** Maps each Person in the tree (by identity) to its node. */
+    private final ConcurrentHashMap<Key, Node> index= new ConcurrentHashMap<>();
+
+    /** The maximum depth of a node in the tree. */
+    private final AtomicInteger maxDepth= new AtomicInteger();
+
+    /** Constructor: a new tree with root p and no children.
+     * Throw an IllegalArgumentException if p is null. */
+    public ConcurrentSharingTree(Person p) throws IllegalArgumentException {
+        if (p == null)
+            throw new IllegalArgumentException("Can't construct ConcurrentSharingTree with null root");
+        top= new Node(p, null);
+        top.linked= true;
+        index.put(new Key(p), top);
+    }
+
+    /** Return the person at the root of this tree. */
+    public Person getRoot() {
+        return top.person;
+    }
+
+    /** Insert c in this tree as a child of p.
+     * Throw an IllegalArgumentException if p or c is null, c is already in
+     * this tree (or another thread is inserting it and gets there first), or
+     * p is not in this tree. */
+    public void insert(Person p, Person c) throws IllegalArgumentException {
+        if (p == null || c == null)
+            throw new IllegalArgumentException("Can't insert null into ConcurrentSharingTree");
+        Node pn= node(p);
+        if (pn == null)
+            throw new IllegalArgumentException("Parent not in ConcurrentSharingTree");
+        Node cn= new Node(c, pn);
+        Node old= index.putIfAbsent(new Key(c), cn);
+        if (old != null) {
+            link(old);
+            throw new IllegalArgumentException("Child already in ConcurrentSharingTree");
+        }
+        link(cn);
+    }
+
+    /** Return the node of p, linked into its parent's children (null if p is
+     * null or not in this tree). */
+    private Node node(Person p) {
+        Node n= p == null ? null : index.get(new Key(p));
+        if (n != null) link(n);
+        return n;
+    }
+
+    /** Link n, which is in index, into its parent's children and maxDepth
+     * unless that has been done. Several threads may do it at once. */
+    private void link(Node n) {
+        if (n.linked) return;
+        if (n.parent != null) n.parent.children.add(n);
+        maxDepth.accumulateAndGet(n.depth, Math::max);
+        n.linked= true;
+    }
+
+    /** Return the number of people in this tree. */
+    public int size() {
+        return index.size();
+    }
+
+    /** Return true iff this tree contains p. */
+    public boolean contains(Person p) {
+        return node(p) != null;
+    }
+
+    /** Return the depth of p in this tree, or -1 if p is not in it. */
+    public int depth(Person p) {
+        Node n= node(p);
+        return n == null ? -1 : n.depth;
+    }
+
+    /** Return the maximum depth of this tree. */
+    public int maxDepth() {
+        return maxDepth.get();
+    }
+
+    /** Return the parent of c (null if c is the root or is not in this tree). */
+    public Person getParent(Person c) {
+        Node n= node(c);
+        return n == null || n.parent == null ? null : n.parent.person;
+    }
+
+    /** Return the number of children of p (-1 if p is not in this tree). */
+    public int getChildrenCount(Person p) {
+        Node n= node(p);
+        return n == null ? -1 : n.children.size();
+    }
+
+    /** Return the route the post took from the root to c (null if c is not
+     * in this tree). */
+    public List<Person> getSharingRoute(Person c) {
+        Node n= node(c);
+        if (n == null) return null;
+        LinkedList<Person> route= new LinkedList<>();
+        for (; n != null; n= n.parent) {
+            route.addFirst(n.person);
+        }
+        return route;
+    }
+
+    /** Return a SharingTree with the people of this tree and their parents.
+     * Inserts that happen while it is being made may or may not be in it. */
+    public SharingTree toSharingTree() {
+        SharingTree st= new SharingTree(top.person);
+        ArrayDeque<Node> queue= new ArrayDeque<>();
+        queue.add(top);
+        while (!queue.isEmpty()) {
+            Node n= queue.remove();
+            for (Node c : n.children) {
+                st.insert(n.person, c.person);
+                queue.add(c);
+            }
+        }
+        return st;
+    }
+
+    /** An instance is the node of a Person in the tree. */
+    private static class Node {
+        private final Person person;
+        private final Node parent;   // null for the root
+        private final int depth;     // 0 for the root
+        private final Set<Node> children= ConcurrentHashMap.newKeySet();
+
+        /** = "this node is in its parent's children and in maxDepth". */
+        private volatile boolean linked;
+
+        /** Constructor: the node of p as a child of parent (null for the root). */
+        Node(Person p, Node parent) {
+            person= p;
+            this.parent= parent;
+            depth= parent == null ? 0 : parent.depth + 1;
+        }
+    }
+
+    /** An instance is a key for a Person that compares Persons with ==, as
+     * SharingTree does. */
+    private static class Key {
+        private final Person p;
+
+        Key(Person p) {
+            this.p= p;
+        }
+
+        public boolean equals(Object ob) {
+            return ob instanceof Key && ((Key) ob).p == p;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(p);
+        }
+    }
+}
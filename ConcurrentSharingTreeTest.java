@@ -0,0 +1,168 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentSharingTreeTest {
+
+    @Test
+    public void testSingleThread() {
+        Network n= new Network();
+        Person a= new Person("A", n, 0), b= new Person("B", n, 0), c= new Person("C", n, 0);
+        ConcurrentSharingTree t= new ConcurrentSharingTree(a);
+        t.insert(a, b);
+        t.insert(b, c);
+        assertEquals(3, t.size());
+        assertEquals(2, t.depth(c));
+        assertEquals(2, t.maxDepth());
+        assertEquals(b, t.getParent(c));
+        assertEquals(null, t.getParent(a));
+        assertEquals(Arrays.asList(a, b, c), t.getSharingRoute(c));
+        assertEquals(1, t.getChildrenCount(b));
+        try {
+            t.insert(a, c);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        SharingTree st= new SharingTree(a);
+        st.insert(a, b);
+        st.insert(b, c);
+        assertEquals(st, t.toSharingTree());
+    }
+
+    /** While threads insert chains, a reader that finds a person in the tree
+     * must find it among its parent's children and within maxDepth. */
+    @Test
+    public void testLinkedWhenSeen() throws Exception {
+        int threads= 4;
+        int perThread= 20_000;
+        Network net= new Network();
+        Person root= new Person("root", net, 0);
+        Person[][] chains= new Person[threads][perThread];
+        for (int k= 0; k < threads; k++) {
+            for (int j= 0; j < perThread; j++) {
+                chains[k][j]= new Person("c" + k + "_" + j, net, 0);
+            }
+        }
+
+        ConcurrentSharingTree t= new ConcurrentSharingTree(root);
+        ExecutorService pool= Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> done= new ArrayList<>();
+        for (int k= 0; k < threads; k++) {
+            Person[] chain= chains[k];
+            done.add(pool.submit(() -> {
+                t.insert(root, chain[0]);
+                for (int j= 1; j < chain.length; j++) {
+                    t.insert(chain[j - 1], chain[j]);
+                }
+                return null;
+            }));
+        }
+        Future<?> reader= pool.submit(() -> {
+            Random rnd= new Random(13);
+            for (int i= 0; i < 200_000; i++) {
+                Person c= chains[rnd.nextInt(threads)][rnd.nextInt(perThread)];
+                int d= t.depth(c);
+                if (d < 0) continue;
+                assertTrue(t.maxDepth() >= d);
+                assertTrue(t.getChildrenCount(t.getParent(c)) >= 1);
+            }
+            return null;
+        });
+        try {
+            for (Future<?> f : done) {
+                f.get();
+            }
+            reader.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new AssertionError(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(perThread, t.maxDepth());
+        assertEquals(threads, t.getChildrenCount(root));
+    }
+
+    /** Many threads insert at once; every person is inserted by two threads
+     * (as children of different parents), and exactly one must win. */
+    @Test
+    public void testStress() throws InterruptedException {
+        int threads= 8;
+        int perThread= 20_000;
+        Network net= new Network();
+        Person root= new Person("root", net, 0);
+        Person[] hubs= new Person[threads];
+        Person[] people= new Person[threads * perThread];
+        for (int k= 0; k < hubs.length; k++) {
+            hubs[k]= new Person("hub" + k, net, 0);
+        }
+        for (int k= 0; k < people.length; k++) {
+            people[k]= new Person("p" + k, net, 0);
+        }
+
+        ConcurrentSharingTree t= new ConcurrentSharingTree(root);
+        for (Person h : hubs) {
+            t.insert(root, h);
+        }
+        AtomicInteger wins= new AtomicInteger();
+        CountDownLatch start= new CountDownLatch(threads);
+        ExecutorService pool= Executors.newFixedThreadPool(threads);
+        List<Future<?>> done= new ArrayList<>();
+        for (int k= 0; k < threads; k++) {
+            int id= k;
+            // A Callable, so that a failed assertion in a worker reaches get() below
+            done.add(pool.submit(() -> {
+                start.countDown();
+                start.await();
+                // Thread id inserts the people of its own block and of the next one
+                for (int j= 0; j < 2 * perThread; j++) {
+                    Person c= people[(id * perThread + j) % people.length];
+                    // Parent: a hub, or a person this thread inserted earlier
+                    Person p= j % 3 == 0 || j < 2 ? hubs[id]
+                            : people[(id * perThread + j - 2) % people.length];
+                    try {
+                        t.insert(t.contains(p) ? p : hubs[id], c);
+                        wins.incrementAndGet();
+                    } catch (IllegalArgumentException e) {
+                        // the other thread inserted c first
+                    }
+                    assertTrue(t.contains(c));
+                    assertNotNull(t.getSharingRoute(c));
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new AssertionError(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(people.length, wins.get());
+        assertEquals(1 + threads + people.length, t.size());
+        SharingTree st= t.toSharingTree();
+        assertEquals(t.size(), st.size());
+        for (Person p : people) {
+            List<Person> route= t.getSharingRoute(p);
+            assertEquals(root, route.get(0));
+            assertEquals(route.size() - 1, t.depth(p));
+            assertEquals(route, st.getSharingRoute(p));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/** An instance is an immutable, compact copy of a SharingTree, made by
+ * SharingTree.freeze().
+ * <p>
+ * Instead of an object and a HashSet per person, the people are numbered
+ * 0..size-1 in preorder (the root is 0) and the tree is kept in int arrays:
+ * the parent and depth of each person, and the children of each person in
+ * compressed sparse row form: the children of person i are
+ * childIds[childStart[i] .. childStart[i+1]-1].
+ * <p>
+ * The queries have the same meaning as the SharingTree queries of the same
+ * name on the tree that was frozen. */
+public class FrozenSharingTree {
+
+    /** people[i] is person number i. */
+    private final Person[] people;
+
+    /** parent[i] is the number of the parent of person i (-1 for the root). */
+    private final int[] parent;
+
+    /** depth[i] is the depth of person i (0 for the root). */
+    private final int[] depth;
+
+    /** time[i] is the time at which person i was inserted (see
+     * SharingTree.getInsertTime). */
+    private final long[] time;
+
+    /** The children of person i are childIds[childStart[i]..childStart[i+1]-1]. */
+    private final int[] childStart;
+
+    /** The children of all people, grouped by parent (see childStart). */
+    private final int[] childIds;
+
+    /** widths[d] is the number of people at depth d, for 0 <= d <= maximum depth. */
+    private final int[] widths;
+
+    /** The maximum of the values in widths. */
+    private final int maxWidth;
+
+    /** An open-addressing hash table from Person to number. A slot holds
+     * 1 + the number of the person in it, or 0 if it is empty. Its length
+     * is a power of 2 that is at least twice the size. */
+    private final int[] slots;
+
+    /** Constructor: a tree of the people in array people, numbered in preorder,
+     * with the given parent, depth, time and child arrays (see the fields).
+     * Precondition: the arrays describe a tree; this object takes them over. */
+    FrozenSharingTree(Person[] people, int[] parent, int[] depth, long[] time,
+            int[] childStart, int[] childIds) {
+        this.people= people;
+        this.parent= parent;
+        this.depth= depth;
+        this.time= time;
+        this.childStart= childStart;
+        this.childIds= childIds;
+
+        int maxDepth= 0;
+        for (int d : depth) {
+            maxDepth= Math.max(maxDepth, d);
+        }
+        widths= new int[maxDepth + 1];
+        int max= 0;
+        for (int d : depth) {
+            widths[d]++;
+            max= Math.max(max, widths[d]);
+        }
+        maxWidth= max;
+
+        slots= new int[Integer.highestOneBit(Math.max(1, people.length)) * 4];
+        for (int i= 0; i < people.length; i++) {
+            int s= slot(people[i]);
+            while (slots[s] != 0) {
+                s= (s + 1) & (slots.length - 1);
+            }
+            slots[s]= i + 1;
+        }
+    }
+
+    /** Return the slot at which the search for p starts. */
+    private int slot(Person p) {
+        int h= System.identityHashCode(p);
+        return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    /** Return the number of p in this tree (-1 if p is not in it). */
+    private int idOf(Person p) {
+        if (p == null) return -1;
+        for (int s= slot(p); slots[s] != 0; s= (s + 1) & (slots.length - 1)) {
+            if (people[slots[s] - 1] == p) return slots[s] - 1;
+        }
+        return -1;
+    }
+
+    /** Return person number i. Precondition: 0 <= i < size(). */
+    Person person(int i) {
+        return people[i];
+    }
+
+    /** Return the number of the parent of person i (-1 for the root).
+     * Precondition: 0 <= i < size(). */
+    int parent(int i) {
+        return parent[i];
+    }
+
+    /** Return the depth of person i. Precondition: 0 <= i < size(). */
+    int depth(int i) {
+        return depth[i];
+    }
+
+    /** Return the insert time of person i. Precondition: 0 <= i < size(). */
+    long time(int i) {
+        return time[i];
+    }
+
+    /** Return the person at the root of this tree. */
+    public Person getRoot() {
+        return people[0];
+    }
+
+    /** Return the number of people in this tree. */
+    public int size() {
+        return people.length;
+    }
+
+    /** Return true iff this tree contains p. */
+    public boolean contains(Person p) {
+        return idOf(p) >= 0;
+    }
+
+    /** Return the number of children of p (-1 if p is not in this tree). */
+    public int getChildrenCount(Person p) {
+        int i= idOf(p);
+        if (i < 0) return -1;
+        return childStart[i + 1] - childStart[i];
+    }
+
+    /** Return the depth at which p occurs in this tree, or -1 if p is not in it. */
+    public int depth(Person p) {
+        int i= idOf(p);
+        return i < 0 ? -1 : depth[i];
+    }
+
+    /** Return the time at which p was inserted (Long.MIN_VALUE if p is the
+     * root of the whole tree that was frozen).
+     * Throw an IllegalArgumentException if p is not in this tree. */
+    public long getInsertTime(Person p) throws IllegalArgumentException {
+        int i= idOf(p);
+        if (i < 0) throw new IllegalArgumentException("Person not in FrozenSharingTree");
+        return time[i];
+    }
+
+    /** Return the maximum depth of this tree. */
+    public int maxDepth() {
+        return widths.length - 1;
+    }
+
+    /** Return the number of people at depth d of this tree.
+     * Throw an IllegalArgumentException if d < 0. */
+    public int widthAtDepth(int d) throws IllegalArgumentException {
+        if (d < 0) throw new IllegalArgumentException("Depth can't be negative");
+        return d < widths.length ? widths[d] : 0;
+    }
+
+    /** Return the maximum width of all the widths in this tree. */
+    public int maxWidth() {
+        return maxWidth;
+    }
+
+    /** Return the immediate parent of c (null if c is the root or is not in
+     * this tree). */
+    public Person getParent(Person c) {
+        int i= idOf(c);
+        if (i <= 0) return null;
+        return people[parent[i]];
+    }
+
+    /** Return the route the post took to get from the root to c
+     * (null if c is not in this tree). */
+    public List<Person> getSharingRoute(Person c) {
+        int i= idOf(c);
+        if (i < 0) return null;
+        LinkedList<Person> route= new LinkedList<>();
+        for (; i >= 0; i= parent[i]) {
+            route.addFirst(people[i]);
+        }
+        return route;
+    }
+
+    /** Return the person at the root of the smallest subtree of this tree that
+     * contains child1 and child2 (null if either is null or not in this tree). */
+    public Person getSharedAncestor(Person child1, Person child2) {
+        int i= idOf(child1);
+        int j= idOf(child2);
+        if (i < 0 || j < 0) return null;
+        while (depth[i] > depth[j]) i= parent[i];
+        while (depth[j] > depth[i]) j= parent[j];
+        while (i != j) {
+            i= parent[i];
+            j= parent[j];
+        }
+        return people[i];
+    }
+
+    /** Return the same String as toString() of the tree that was frozen. */
+    public String toString() {
+        StringBuilder s= new StringBuilder();
+        try {
+            writeTo(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // a StringBuilder does not throw
+        }
+        return s.toString();
+    }
+
+    /** Append toString() to out in one pass. Throw any IOException that out throws. */
+    public void writeTo(Appendable out) throws IOException {
+        // People are in preorder, so the brackets to close before person i are
+        // those of the people between i's parent and the person before i.
+        int prevDepth= 0;
+        for (int i= 0; i < people.length; i++) {
+            if (i > 0 && depth[i] <= prevDepth) {
+                for (int d= depth[i]; d < prevDepth; d++) {
+                    out.append(SharingTree.END_CHILDREN_DELIMITER);
+                }
+                out.append(SharingTree.DELIMITER);
+            }
+            out.append(people[i].toString());
+            if (childStart[i + 1] > childStart[i]) {
+                out.append(SharingTree.SEPARATOR);
+                out.append(SharingTree.START_CHILDREN_DELIMITER);
+            }
+            prevDepth= depth[i];
+        }
+        for (int d= 0; d < prevDepth; d++) {
+            out.append(SharingTree.END_CHILDREN_DELIMITER);
+        }
+    }
+}
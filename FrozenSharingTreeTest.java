@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class FrozenSharingTreeTest {
+
+    private static Network n;
+    private static Person[] people;
+
+    @BeforeClass
+    public static void setup(){
+        n= new Network();
+        people= new Person[300];
+        for (int k= 0; k < people.length; k++) {
+            people[k]= new Person("P" + k, n, 0);
+        }
+    }
+
+    /** Return a tree of people[0..size-1] with random parents. */
+    private static SharingTree randomTree(int size, long seed) {
+        Random rnd= new Random(seed);
+        SharingTree st= new SharingTree(people[0]);
+        for (int k= 1; k < size; k++) {
+            st.insert(people[rnd.nextInt(k)], people[k]);
+        }
+        return st;
+    }
+
+    @Test
+    public void testSingleNode() {
+        SharingTree st= new SharingTree(people[0]);
+        FrozenSharingTree f= st.freeze();
+        assertEquals(1, f.size());
+        assertEquals(people[0], f.getRoot());
+        assertEquals(0, f.depth(people[0]));
+        assertEquals(1, f.maxWidth());
+        assertEquals(st.toString(), f.toString());
+        assertEquals(null, f.getParent(people[0]));
+        assertFalse(f.contains(people[1]));
+    }
+
+    @Test
+    public void testQueriesMatch() {
+        SharingTree st= randomTree(people.length, 2110);
+        FrozenSharingTree f= st.freeze();
+        assertEquals(st.size(), f.size());
+        assertEquals(st.maxDepth(), f.maxDepth());
+        assertEquals(st.maxWidth(), f.maxWidth());
+        assertEquals(st.toString(), f.toString());
+        for (int d= 0; d <= st.maxDepth() + 1; d++) {
+            assertEquals(st.widthAtDepth(d), f.widthAtDepth(d));
+        }
+        Random rnd= new Random(1);
+        for (Person p : people) {
+            assertEquals(st.depth(p), f.depth(p));
+            assertEquals(st.getInsertTime(p), f.getInsertTime(p));
+            assertEquals(st.getParent(p), f.getParent(p));
+            assertEquals(st.getSharingRoute(p), f.getSharingRoute(p));
+            assertEquals(st.getTree(p).getChildrenCount(), f.getChildrenCount(p));
+            Person q= people[rnd.nextInt(people.length)];
+            assertEquals(st.getSharedAncestor(p, q), f.getSharedAncestor(p, q));
+        }
+    }
+
+    @Test
+    public void testFreezeSubtree() {
+        SharingTree st= randomTree(100, 7);
+        SharingTree sub= st.getTree(people[1]);
+        FrozenSharingTree f= sub.freeze();
+        assertEquals(sub.size(), f.size());
+        assertEquals(sub.toString(), f.toString());
+        assertEquals(sub.maxWidth(), f.maxWidth());
+        assertFalse(f.contains(people[0]));
+        assertEquals(null, f.getSharingRoute(people[0]));
+        assertEquals(-1, f.depth(people[0]));
+    }
+
+    @Test
+    public void testLaterInsertsNotSeen() {
+        SharingTree st= randomTree(10, 3);
+        FrozenSharingTree f= st.freeze();
+        st.insert(people[0], people[200]);
+        assertEquals(10, f.size());
+        assertFalse(f.contains(people[200]));
+    }
+}
@@ -0,0 +1,280 @@
+package LinkedList;
+
+import java.util.Random;
+
+/** An instance is a doubly linked list, like DLL, that also finds the node
+ * at a position, and the position of a node, in O(log n) expected time.
+ * <p>
+ * Besides the prev and next links, the nodes form a treap: a binary tree
+ * whose inorder is the order of the list and in which each node has a random
+ * priority that is at least the priority of its children. The tree then has
+ * O(log n) expected height. Each node knows its parent and the number of
+ * nodes in its subtree, so getNode walks down from the root and rank walks up
+ * to it. Inserting or removing a node rotates it up or down the tree and
+ * updates the counts on its path to the root, so insertAfter, insertBefore,
+ * append, prepend and remove take O(log n) expected time. */
+public class IndexedDLL<E> {
+    private Node first; // first node of linked list (null if none)
+    private Node last;  // last node of linked list (null if none)
+    private Node root;  // root of the treap (null if the list is empty)
+
+    /** The source of the priorities of the nodes. */
+    private final Random rnd= new Random();
+
+    /** Constructor: an empty linked list. */
+    public IndexedDLL() {
+    }
+
+    /** Return the number of values in this list.
+     *  This function takes constant time. */
+    public int size() {
+        return count(root);
+    }
+
+    /** Return the first node of the list (null if the list is empty). */
+    public Node getFirst() {
+        return first;
+    }
+
+    /** Return the last node of the list (null if the list is empty). */
+    public Node getLast() {
+        return last;
+    }
+
+    /** Return the value of node n of this list.
+     * Precondition: n is a node of this list; it may not be null. */
+    public E valueOf(Node n) {
+        assert n != null;
+        return n.val;
+    }
+
+    /** Return a representation of this list: its values, with adjacent
+     * ones separated by ", ", "[" at the beginning, and "]" at the end. <br>
+     * Takes time proportional to the length of this list.<br>
+     * E.g. for the list containing 6 3 8 in that order, the result it "[6, 3, 8]". */
+    public String toString() {
+        StringBuilder res= new StringBuilder("[");
+        // inv: res contains values of nodes before node n (all of them if n = null),
+        //      with ", " after each (except for the last value)
+        for (Node n= first; n != null; n= n.next) {
+            res.append(n.val);
+            if (n.next != null) res.append(", ");
+        }
+        return res.append("]").toString();
+    }
+
+    /** Return a representation of this list: its values in reverse, with adjacent
+     * ones separated by ", ", "[" at the beginning, and "]" at the end. <br>
+     * Takes time proportional to the length of this list.
+     * E.g. for the list containing 6 3 8 in that order, the result is "[8, 3, 6]". */
+    public String toStringRev() {
+        StringBuilder res= new StringBuilder("[");
+        for (Node n= last; n != null; n= n.prev) {
+            res.append(n.val);
+            if (n.prev != null) res.append(", ");
+        }
+        return res.append("]").toString();
+    }
+
+    /** add value v in a new node at the end of the list.
+     *  This operation takes O(log n) expected time. */
+    public void append(E v) {
+        if (last == null) {
+            Node m= new Node(null, null, v);
+            first= m;
+            last= m;
+            root= m;
+        } else {
+            insertAfter(v, last);
+        }
+    }
+
+    /** Add value v in a new node at the beginning of the list.
+     * This operation takes O(log n) expected time. */
+    public void prepend(E v) {
+        if (first == null) {
+            append(v);
+        } else {
+            insertBefore(v, first);
+        }
+    }
+
+    /** Return node number k.
+     *  Precondition: 0 <= k < size of the list.
+     *  Example. Suppose list is [8, 6, 7].
+     *  If k is 0, return first node; if k = 1, return second node, ...
+     *  This operation takes O(log n) expected time. */
+    public Node getNode(int k) {
+        assert (0 <= k) && (k < size());
+        Node n= root;
+        // inv: node number k of the list is node number k of n's subtree
+        while (count(n.left) != k) {
+            if (k < count(n.left)) {
+                n= n.left;
+            } else {
+                k= k - count(n.left) - 1;
+                n= n.right;
+            }
+        }
+        return n;
+    }
+
+    /** Return the number of node n in this list: 0 if n is the first node,
+     * 1 if it is the second, ... (so that getNode(rank(n)) is n).
+     * This operation takes O(log n) expected time.
+     * Precondition: n must be a node of this list; it may not be null. */
+    public int rank(Node n) {
+        assert n != null;
+        int k= count(n.left);
+        // inv: k is the number of nodes before the original n in n's subtree
+        for (; n.parent != null; n= n.parent) {
+            if (n == n.parent.right) k= k + count(n.parent.left) + 1;
+        }
+        return k;
+    }
+
+    /** Insert value v in a new node after node n.
+     * This operation takes O(log n) expected time.
+     * Precondition: n must be a node of this list; it may not be null. */
+    public void insertAfter(E v, Node n) {
+        assert n != null;
+        Node m= new Node(n, n.next, v);
+        if (n.next == null) last= m;
+        else n.next.prev= m;
+        n.next= m;
+
+        // m goes right after n in inorder: it is n's right child if n has
+        // none, and otherwise the left child of the old next node, which is
+        // then the leftmost node of n's right subtree
+        if (n.right == null) attach(m, n, false);
+        else attach(m, m.next, true);
+    }
+
+    /** Insert value v in a new node before node n.
+     * This operation takes O(log n) expected time.
+     * Precondition: n must be a node of this list; it may not be null. */
+    public void insertBefore(E v, Node n) {
+        assert n != null;
+        Node m= new Node(n.prev, n, v);
+        if (n.prev == null) first= m;
+        else n.prev.next= m;
+        n.prev= m;
+
+        if (n.left == null) attach(m, n, true);
+        else attach(m, m.prev, false);
+    }
+
+    /** Make new node m the left child (if left) or right child of p in the
+     * treap, then rotate m up until the priorities are in order.
+     * Precondition: that child of p is null. */
+    private void attach(Node m, Node p, boolean left) {
+        m.parent= p;
+        if (left) p.left= m;
+        else p.right= m;
+        for (Node a= p; a != null; a= a.parent) {
+            a.count++;
+        }
+        while (m.parent != null && m.priority > m.parent.priority) {
+            rotateUp(m);
+        }
+    }
+
+    /** Remove node n from this list.
+     * This operation takes O(log n) expected time.
+     * Precondition: n must be a node of this list; it may not be null. */
+    public void remove(Node n) {
+        assert n != null;
+        assert size() >= 1;
+        if (n.prev == null) first= n.next;
+        else n.prev.next= n.next;
+        if (n.next == null) last= n.prev;
+        else n.next.prev= n.prev;
+
+        // Rotate n down until it has at most one child, then splice it out
+        while (n.left != null && n.right != null) {
+            rotateUp(n.left.priority > n.right.priority ? n.left : n.right);
+        }
+        Node c= n.left != null ? n.left : n.right;
+        Node p= n.parent;
+        if (c != null) c.parent= p;
+        if (p == null) root= c;
+        else if (p.left == n) p.left= c;
+        else p.right= c;
+        for (Node a= p; a != null; a= a.parent) {
+            a.count--;
+        }
+        n.parent= null;
+        n.left= null;
+        n.right= null;
+        n.prev= null;
+        n.next= null;
+    }
+
+    /** Rotate node m, which has a parent p, above p, keeping the inorder and
+     * the counts of the nodes. */
+    private void rotateUp(Node m) {
+        Node p= m.parent;
+        Node g= p.parent;
+        if (m == p.left) {
+            p.left= m.right;
+            if (m.right != null) m.right.parent= p;
+            m.right= p;
+        } else {
+            p.right= m.left;
+            if (m.left != null) m.left.parent= p;
+            m.left= p;
+        }
+        p.parent= m;
+        m.parent= g;
+        if (g == null) root= m;
+        else if (g.left == p) g.left= m;
+        else g.right= m;
+        m.count= p.count;
+        p.count= count(p.left) + count(p.right) + 1;
+    }
+
+    /** Return the number of nodes in the subtree of treap node n (0 if n is null). */
+    private int count(Node n) {
+        return n == null ? 0 : n.count;
+    }
+
+    /*********************/
+
+    /** An instance is a node of this list. */
+    public class Node {
+        private Node prev; // Previous node on list (null if this is first node)
+        private E val;   // The value of this element
+        private Node next; // Next node on list. (null if this is last node)
+
+        private Node parent, left, right; // links in the treap (null if none)
+        private final int priority;       // random; at least the children's
+        private int count= 1;             // number of nodes in this subtree
+
+        /** Constructor: an instance with previous node p (can be null),
+         * next node n (can be null), and value v. */
+        Node(Node p, Node n, E v) {
+            prev= p;
+            next= n;
+            val= v;
+            priority= rnd.nextInt();
+        }
+
+        /** Return the value of this node. */
+        public E getValue() {
+            return val;
+        }
+
+        /** Return the node previous to this one (null if this is the
+         * first node of the list). */
+        public Node prev() {
+            return prev;
+        }
+
+        /** Return the next node in this list (null if this is the
+         * last node of this list). */
+        public Node next() {
+            return next;
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package LinkedList;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IndexedDLLTest {
+
+	@Test
+	public void testAppendPrepend() {
+		IndexedDLL<String> ll= new IndexedDLL<String>();
+		assertEquals("[]", ll.toString());
+		assertEquals("[]", ll.toStringRev());
+		assertEquals(0, ll.size());
+		assertNull(ll.getFirst());
+		ll.append("one");
+		assertEquals("[one]", ll.toString());
+		assertEquals("[one]", ll.toStringRev());
+		assertSame(ll.getFirst(), ll.getLast());
+		ll.append("two");
+		ll.prepend("zero");
+		assertEquals("[zero, one, two]", ll.toString());
+		assertEquals("[two, one, zero]", ll.toStringRev());
+		assertEquals(3, ll.size());
+		assertEquals("zero", ll.getFirst().getValue());
+		assertEquals("two", ll.valueOf(ll.getLast()));
+	}
+
+	@Test
+	public void testGetNodeAndRank() {
+		IndexedDLL<String> ll= new IndexedDLL<String>();
+		try {ll.getNode(0); fail("no exception thrown");}
+		catch (AssertionError e) {if (e.getMessage() != null) fail();}
+		ll.append("zero");
+		ll.append("one");
+		ll.append("three");
+		ll.insertAfter("two", ll.getNode(1));
+		ll.insertBefore("neg", ll.getNode(0));
+		assertEquals("[neg, zero, one, two, three]", ll.toString());
+		for (int k= 0; k < ll.size(); k++) {
+			assertEquals(k, ll.rank(ll.getNode(k)));
+		}
+		IndexedDLL<String>.Node two= ll.getNode(3);
+		assertEquals("two", two.getValue());
+		assertEquals("one", two.prev().getValue());
+		assertEquals("three", two.next().getValue());
+		ll.remove(ll.getNode(0));
+		assertEquals(2, ll.rank(two));
+		try {ll.getNode(4); fail("no exception thrown");}
+		catch (AssertionError e) {if (e.getMessage() != null) fail();}
+	}
+
+	@Test
+	public void testRemove() {
+		IndexedDLL<String> ll= new IndexedDLL<String>();
+		ll.append("zero");
+		ll.append("one");
+		ll.append("two");
+		ll.remove(ll.getNode(1));
+		assertEquals("[zero, two]", ll.toString());
+		assertEquals("[two, zero]", ll.toStringRev());
+		ll.remove(ll.getLast());
+		assertEquals("[zero]", ll.toString());
+		ll.remove(ll.getFirst());
+		assertEquals("[]", ll.toString());
+		assertEquals("[]", ll.toStringRev());
+		assertEquals(0, ll.size());
+		assertNull(ll.getLast());
+		ll.prepend("again");
+		assertEquals("[again]", ll.toString());
+	}
+
+	/** Do random inserts and removals at random positions, on an IndexedDLL
+	 * and on an ArrayList, and compare them. */
+	@Test
+	public void testRandom() {
+		Random rnd= new Random(2110);
+		IndexedDLL<Integer> ll= new IndexedDLL<Integer>();
+		List<Integer> expected= new ArrayList<Integer>();
+		for (int i= 0; i < 20000; i++) {
+			int op= rnd.nextInt(5);
+			if (expected.isEmpty() || op == 0) {
+				ll.append(i);
+				expected.add(i);
+			} else if (op == 1) {
+				int k= rnd.nextInt(expected.size());
+				ll.insertAfter(i, ll.getNode(k));
+				expected.add(k + 1, i);
+			} else if (op == 2) {
+				int k= rnd.nextInt(expected.size());
+				ll.insertBefore(i, ll.getNode(k));
+				expected.add(k, i);
+			} else if (op == 3) {
+				int k= rnd.nextInt(expected.size());
+				ll.remove(ll.getNode(k));
+				expected.remove(k);
+			} else {
+				int k= rnd.nextInt(expected.size());
+				IndexedDLL<Integer>.Node n= ll.getNode(k);
+				assertEquals(expected.get(k), n.getValue());
+				assertEquals(k, ll.rank(n));
+			}
+			assertEquals(expected.size(), ll.size());
+		}
+		assertEquals(expected.toString(), ll.toString());
+		int k= 0;
+		for (IndexedDLL<Integer>.Node n= ll.getFirst(); n != null; n= n.next()) {
+			assertEquals(expected.get(k), n.getValue());
+			assertEquals(k, ll.rank(n));
+			k++;
+		}
+	}
+
+	/** Positions near the middle of a long list are found quickly. */
+	@Test
+	public void testLarge() {
+		IndexedDLL<Integer> ll= new IndexedDLL<Integer>();
+		int n= 500_000;
+		ll.append(0);
+		// Each value goes in the middle; the last one stays at n/2 - 1
+		for (int i= 1; i < n; i++) {
+			ll.insertBefore(i, ll.getNode(ll.size() / 2));
+		}
+		assertEquals(n, ll.size());
+		for (int k= 0; k < n; k+= 997) {
+			assertEquals(k, ll.rank(ll.getNode(k)));
+		}
+		assertEquals(n - 1, (int) ll.getNode(n / 2 - 1).getValue());
+	}
+}
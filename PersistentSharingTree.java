@@ -0,0 +1,518 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** An instance is a SharingTree that can be copied in constant time.
+ * <p>
+ * The queries and insert have the same meaning as those of SharingTree, and
+ * so do the copy constructor and getChildren(): a copy and the original do
+ * not see each other's later inserts, and getChildren() returns a new set.
+ * <p>
+ * The tree is kept as a persistent map from Person to an immutable node
+ * record (parent, depth, children): a hash trie with 32 branches per node,
+ * keyed by identity hash code, so it has at most 7 levels. A copy shares the
+ * trie of the original, which becomes read-only for both of them; a change
+ * copies just the trie nodes on the path to the changed record (at most 7
+ * arrays of at most 32 slots). The trie nodes made since the last copy belong
+ * to the tree alone and are changed in place. The children of a record are an
+ * immutable list, newest first, so an insert of c below p makes just two
+ * records: c's, and a copy of p's with c in front of its children. Looking a
+ * Person up and insert take O(log n) time (at most 7 levels).
+ * <p>
+ * As for SharingTree, an object for a subtree (returned by insert, getTree
+ * or getChildren) sees the later inserts into the tree it is part of. */
+public class PersistentSharingTree {
+
+    /** The person at the root of this (sub)tree. */
+    private final Person root;
+
+    /** The whole tree this is a subtree of. */
+    private final Version version;
+
+    /** Constructor: a new tree with root p and no children.
+     * Throw an IllegalArgumentException if p is null. */
+    public PersistentSharingTree(Person p) throws IllegalArgumentException {
+        if (p == null)
+            throw new IllegalArgumentException("Can't construct PersistentSharingTree with null root");
+        root= p;
+        version= new Version(p);
+        version.put(p, new Node(null, 0, null));
+    }
+
+    /** Constructor: a copy of tree p. Inserts into p and into the copy do not
+     * affect each other. Takes constant time if p is a whole tree, and time
+     * proportional to the size of p (times the O(log n) of an insert) if p is
+     * a subtree.
+     * Throw an IllegalArgumentException if p is null. */
+    public PersistentSharingTree(PersistentSharingTree p) throws IllegalArgumentException {
+        if (p == null)
+            throw new IllegalArgumentException("Can't construct PersistentSharingTree as copy of null");
+        root= p.root;
+        if (p.root == p.version.root) {
+            version= p.version.share();
+            return;
+        }
+
+        // Copy just the subtree p into a new layer, with depths from p
+        version= new Version(root);
+        int base= p.node(root).depth;
+        ArrayDeque<Person> queue= new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Person q= queue.remove();
+            Node n= p.node(q);
+            version.put(q, new Node(q == root ? null : n.parent, n.depth - base, n.children));
+            queue.addAll(Arrays.asList(n.children()));
+        }
+    }
+
+    /** Constructor: a tree equal to SharingTree st (it has the same people,
+     * with the same parents). Takes time proportional to the size of st.
+     * Throw an IllegalArgumentException if st is null. */
+    public PersistentSharingTree(SharingTree st) throws IllegalArgumentException {
+        this(st == null ? null : st.getRoot());
+        ArrayDeque<SharingTree> queue= new ArrayDeque<>();
+        queue.add(st);
+        while (!queue.isEmpty()) {
+            SharingTree t= queue.remove();
+            for (SharingTree c : t.getChildren()) {
+                insert(t.getRoot(), c.getRoot());
+                queue.add(c);
+            }
+        }
+    }
+
+    /** Constructor: the subtree with root p of the whole tree v.
+     * Precondition: p is in v. */
+    private PersistentSharingTree(Version v, Person p) {
+        root= p;
+        version= v;
+    }
+
+    /** Return the record of p in the whole tree (null if p is not in it). */
+    private Node node(Person p) {
+        return version.find(p);
+    }
+
+    /** Return the person that is at the root of this tree. */
+    public Person getRoot() {
+        return root;
+    }
+
+    /** Return the number of direct children of this tree. */
+    public int getChildrenCount() {
+        return node(root).childCount();
+    }
+
+    /** Return a COPY of the set of children of this tree. */
+    public Set<PersistentSharingTree> getChildren() {
+        Person[] cs= node(root).children();
+        Set<PersistentSharingTree> children= new HashSet<>();
+        for (Person c : cs) {
+            children.add(new PersistentSharingTree(version, c));
+        }
+        return children;
+    }
+
+    /** Insert c in this tree as a child of p and return the tree whose root
+     * is the new child.
+     * Throw an IllegalArgumentException if p or c is null, c is already in
+     * the whole tree, or p is not in this tree. Takes O(log n) time. */
+    public PersistentSharingTree insert(Person p, Person c) throws IllegalArgumentException {
+        if (p == null || c == null || node(c) != null || !contains(p))
+            throw new IllegalArgumentException("Can't construct PersistentSharingTree");
+        Node pn= node(p);
+        version.put(p, new Node(pn.parent, pn.depth, new Children(c, pn.children)));
+        version.put(c, new Node(p, pn.depth + 1, null));
+        return new PersistentSharingTree(version, c);
+    }
+
+    /** Return the number of people in this tree. Takes constant time if this
+     * is a whole tree. */
+    public int size() {
+        if (root == version.root) return version.size;
+        int[] size= {0};
+        levelOrder((q, n) -> size[0]++);
+        return size[0];
+    }
+
+    /** Return the depth at which p occurs in this tree, or -1 if p is not in it. */
+    public int depth(Person p) {
+        if (!contains(p)) return -1;
+        return node(p).depth - node(root).depth;
+    }
+
+    /** If p is in this tree, return the tree object in this tree whose root is
+     * p. If p is not in this tree, return null. */
+    public PersistentSharingTree getTree(Person p) {
+        if (p == root) return this;
+        return contains(p) ? new PersistentSharingTree(version, p) : null;
+    }
+
+    /** Return true iff this tree contains p. Takes time proportional to the
+     * depth of p below the root of this tree (constant for a whole tree). */
+    public boolean contains(Person p) {
+        Node n= p == null ? null : node(p);
+        if (n == null) return false;
+        if (root == version.root || p == root) return true;
+        int d= node(root).depth;
+        while (n.depth > d + 1) {
+            n= node(n.parent);
+        }
+        return n.depth == d + 1 && n.parent == root;
+    }
+
+    /** Return the maximum depth of this tree. */
+    public int maxDepth() {
+        int base= node(root).depth;
+        int[] max= {0};
+        levelOrder((q, n) -> max[0]= Math.max(max[0], n.depth - base));
+        return max[0];
+    }
+
+    /** Return the width of this tree at depth d.
+     * Throw an IllegalArgumentException if d < 0. */
+    public int widthAtDepth(int d) throws IllegalArgumentException {
+        if (d < 0) throw new IllegalArgumentException("Depth can't be negative");
+        int[] widths= widths();
+        return d < widths.length ? widths[d] : 0;
+    }
+
+    /** Return the maximum width of all the widths in this tree. */
+    public int maxWidth() {
+        int max= 0;
+        for (int w : widths()) {
+            max= Math.max(max, w);
+        }
+        return max;
+    }
+
+    /** Return an array whose element d is the width of this tree at depth d. */
+    private int[] widths() {
+        int base= node(root).depth;
+        int[][] widths= {new int[8]};
+        levelOrder((q, n) -> {
+            int d= n.depth - base;
+            if (d == widths[0].length) widths[0]= Arrays.copyOf(widths[0], 2 * d);
+            widths[0][d]++;
+        });
+        int length= widths[0].length;
+        while (widths[0][length - 1] == 0) length--;
+        return Arrays.copyOf(widths[0], length);
+    }
+
+    /** Return the route the post took to get from the root of this tree to c
+     * (null if c is not in this tree). */
+    public List<Person> getSharingRoute(Person c) {
+        if (!contains(c)) return null;
+        LinkedList<Person> route= new LinkedList<>();
+        for (Person q= c; q != root; q= node(q).parent) {
+            route.addFirst(q);
+        }
+        route.addFirst(root);
+        return route;
+    }
+
+    /** Return the immediate parent of c (null if c is not in this tree or is
+     * its root). */
+    public Person getParent(Person c) {
+        if (c == root || !contains(c)) return null;
+        return node(c).parent;
+    }
+
+    /** Return the person at the root of the smallest subtree of this tree that
+     * contains child1 and child2 (null if either is null or not in this tree). */
+    public Person getSharedAncestor(Person child1, Person child2) {
+        if (!contains(child1) || !contains(child2)) return null;
+        Person a= child1;
+        Person b= child2;
+        while (node(a).depth > node(b).depth) a= node(a).parent;
+        while (node(b).depth > node(a).depth) b= node(b).parent;
+        while (a != b) {
+            a= node(a).parent;
+            b= node(b).parent;
+        }
+        return a;
+    }
+
+    /** Return a (single line) String representation of this tree, in the
+     * format of SharingTree.toString(). Children are in the order they were
+     * inserted. */
+    public String toString() {
+        StringBuilder s= new StringBuilder();
+        // Each stack element is a person still to write, or close for a "]" to write
+        Object close= new Object();
+        ArrayDeque<Object> stack= new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Object top= stack.pop();
+            if (top == close) {
+                s.append(SharingTree.END_CHILDREN_DELIMITER);
+            } else {
+                Person q= (Person) top;
+                s.append(q.toString());
+                Person[] cs= node(q).children();
+                if (cs.length > 0) {
+                    s.append(SharingTree.SEPARATOR).append(SharingTree.START_CHILDREN_DELIMITER);
+                    stack.push(close);
+                    for (int i= cs.length - 1; i >= 0; i--) {
+                        stack.push(cs[i]);
+                    }
+                    continue;
+                }
+            }
+            // A person next on the stack is a sibling of the subtree just finished
+            if (!stack.isEmpty() && stack.peek() != close) s.append(SharingTree.DELIMITER);
+        }
+        return s.toString();
+    }
+
+    /** Return true iff ob is a PersistentSharingTree with the same root Person
+     * as this one whose children are equal to the children of this one
+     * (as for SharingTree.equals). */
+    public boolean equals(Object ob) {
+        if (this == ob) return true;
+        if (!(ob instanceof PersistentSharingTree)) return false;
+        PersistentSharingTree other= (PersistentSharingTree) ob;
+        if (root != other.root) return false;
+
+        // Children are matched by Person, since a Person is in at most one node
+        ArrayDeque<Person> stack= new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Person q= stack.pop();
+            Person[] mine= node(q).children();
+            if (mine.length != other.node(q).childCount()) return false;
+            for (Person c : mine) {
+                Node n= other.node(c);
+                if (n == null || n.parent != q) return false;
+                stack.push(c);
+            }
+        }
+        return true;
+    }
+
+    /** Return the hashCode of the name of the root Person. */
+    public @Override int hashCode() {
+        return root.getName().hashCode();
+    }
+
+    /** Return a SharingTree equal to this tree (a copy that does not share
+     * anything with it). */
+    public SharingTree toSharingTree() {
+        SharingTree st= new SharingTree(root);
+        ArrayDeque<Person> queue= new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Person q= queue.remove();
+            for (Person c : node(q).children()) {
+                st.insert(q, c);
+                queue.add(c);
+            }
+        }
+        return st;
+    }
+
+    /** A NodeVisitor is applied to the people of a tree and their records. */
+    private interface NodeVisitor {
+        /** Visit person q, whose record is n. */
+        void visit(Person q, Node n);
+    }
+
+    /** Apply v to every person of this tree in order of increasing depth. */
+    private void levelOrder(NodeVisitor v) {
+        ArrayDeque<Person> queue= new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Person q= queue.remove();
+            Node n= node(q);
+            v.visit(q, n);
+            for (Person c : n.children()) {
+                queue.add(c);
+            }
+        }
+    }
+
+    /** An instance is the record of a person in a tree. It never changes;
+     * a change makes a new record. */
+    private static class Node {
+        private final Person parent;      // null for the root of the whole tree
+        private final int depth;          // depth in the whole tree
+        private final Children children;  // newest first (null if none)
+
+        Node(Person parent, int depth, Children children) {
+            this.parent= parent;
+            this.depth= depth;
+            this.children= children;
+        }
+
+        /** Return the number of children. */
+        int childCount() {
+            return children == null ? 0 : children.count;
+        }
+
+        /** Return a new array of the children, in the order they were inserted. */
+        Person[] children() {
+            Person[] cs= new Person[childCount()];
+            int k= cs.length;
+            for (Children l= children; l != null; l= l.rest) {
+                cs[--k]= l.person;
+            }
+            return cs;
+        }
+    }
+
+    /** An instance is an immutable list of the children of a person, newest
+     * first. Lists of the children of a person in different versions share
+     * their older elements. */
+    private static class Children {
+        private final Person person;   // the newest child
+        private final Children rest;   // the older children (null if none)
+        private final int count;       // the number of children in this list
+
+        Children(Person person, Children rest) {
+            this.person= person;
+            this.rest= rest;
+            count= rest == null ? 1 : rest.count + 1;
+        }
+    }
+
+    /** An instance is a node of the hash trie of records. Bit b of bitmap is
+     * set iff some person's identity hash code has b in the 5 bits for this
+     * level; its slot (a Trie, or the Entry list of people whose hash codes
+     * are equal) is slots[the number of bits set below b]. */
+    private static class Trie {
+        private final Object edit;   // the version that may change this node in place
+        private int bitmap;
+        private Object[] slots;
+
+        Trie(Object edit, int bitmap, Object[] slots) {
+            this.edit= edit;
+            this.bitmap= bitmap;
+            this.slots= slots;
+        }
+    }
+
+    /** An instance is the record n of person p in the hash trie, followed by
+     * those of the people with the same identity hash code. It never changes. */
+    private static class Entry {
+        private final Person person;
+        private final Node node;
+        private final Entry next;    // (null if none)
+
+        Entry(Person person, Node node, Entry next) {
+            this.person= person;
+            this.node= node;
+            this.next= next;
+        }
+    }
+
+    /** An instance is a whole tree: its records and its number of people.
+     * Trie nodes whose edit is this version's edit belong to it alone; all
+     * others may be shared with copies and are copied to change them. */
+    private static class Version {
+        private final Person root;  // the root of the whole tree
+        private Trie trie;          // the records
+        private int size;           // the number of people in the tree
+        private Object edit= new Object();
+
+        /** Constructor: a tree with no records and root root. */
+        Version(Person root) {
+            this.root= root;
+            trie= new Trie(edit, 0, new Object[0]);
+        }
+
+        /** Constructor: a tree with root root that shares trie, which has
+         * size records. */
+        private Version(Person root, Trie trie, int size) {
+            this.root= root;
+            this.trie= trie;
+            this.size= size;
+        }
+
+        /** Return a copy of this tree. The trie becomes read-only for both
+         * this tree and the copy. */
+        Version share() {
+            edit= new Object();
+            return new Version(root, trie, size);
+        }
+
+        /** Return the record of p (null if none). */
+        Node find(Person p) {
+            int h= System.identityHashCode(p);
+            Trie t= trie;
+            for (int shift= 0; ; shift+= 5) {
+                int bit= 1 << ((h >>> shift) & 31);
+                if ((t.bitmap & bit) == 0) return null;
+                Object o= t.slots[Integer.bitCount(t.bitmap & (bit - 1))];
+                if (o instanceof Trie) {
+                    t= (Trie) o;
+                } else {
+                    for (Entry e= (Entry) o; e != null; e= e.next) {
+                        if (e.person == p) return e.node;
+                    }
+                    return null;
+                }
+            }
+        }
+
+        /** Make n the record of p, counting p as a new person if it had none. */
+        void put(Person p, Node n) {
+            trie= put(trie, 0, System.identityHashCode(p), p, n);
+        }
+
+        /** Return trie t, at the level with the given shift, with n as the
+         * record of p, whose hash code is h. Nodes of t that belong to this
+         * version are changed in place, and others are copied. */
+        private Trie put(Trie t, int shift, int h, Person p, Node n) {
+            int bit= 1 << ((h >>> shift) & 31);
+            int i= Integer.bitCount(t.bitmap & (bit - 1));
+            if ((t.bitmap & bit) == 0) {
+                Object[] slots= new Object[t.slots.length + 1];
+                System.arraycopy(t.slots, 0, slots, 0, i);
+                slots[i]= new Entry(p, n, null);
+                System.arraycopy(t.slots, i, slots, i + 1, t.slots.length - i);
+                size++;
+                if (t.edit != edit) return new Trie(edit, t.bitmap | bit, slots);
+                t.bitmap|= bit;
+                t.slots= slots;
+                return t;
+            }
+            Object o= t.slots[i];
+            Object slot;
+            if (o instanceof Trie) {
+                slot= put((Trie) o, shift + 5, h, p, n);
+            } else {
+                Entry e= (Entry) o;
+                int eh= System.identityHashCode(e.person);
+                if (eh == h) {
+                    slot= put(e, p, n);
+                } else {
+                    // Hash codes that differ differ in a later level (32 bits
+                    // are used by 7 levels), so push e down one level
+                    Trie down= new Trie(edit, 1 << ((eh >>> (shift + 5)) & 31), new Object[] {e});
+                    slot= put(down, shift + 5, h, p, n);
+                }
+            }
+            if (t.edit != edit) t= new Trie(edit, t.bitmap, t.slots.clone());
+            t.slots[i]= slot;
+            return t;
+        }
+
+        /** Return list e (of people with p's hash code) with n as the record
+         * of p. */
+        private Entry put(Entry e, Person p, Node n) {
+            if (e == null) {
+                size++;
+                return new Entry(p, n, null);
+            }
+            if (e.person == p) return new Entry(p, n, e.next);
+            return new Entry(e.person, e.node, put(e.next, p, n));
+        }
+    }
+}
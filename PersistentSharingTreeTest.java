@@ -0,0 +1,164 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PersistentSharingTreeTest {
+
+    private static Network n;
+    private static Person[] people;
+
+    @BeforeClass
+    public static void setup(){
+        n= new Network();
+        people= new Person[200];
+        for (int k= 0; k < people.length; k++) {
+            people[k]= new Person("P" + k, n, 0);
+        }
+    }
+
+    @Test
+    public void testInsertAndQueries() {
+        PersistentSharingTree pt= new PersistentSharingTree(people[0]);
+        SharingTree st= new SharingTree(people[0]);
+        Random rnd= new Random(2110);
+        for (int k= 1; k < 100; k++) {
+            Person p= people[rnd.nextInt(k)];
+            assertEquals(people[k], pt.insert(p, people[k]).getRoot());
+            st.insert(p, people[k]);
+        }
+        assertEquals(st.size(), pt.size());
+        assertEquals(st.maxDepth(), pt.maxDepth());
+        assertEquals(st.maxWidth(), pt.maxWidth());
+        assertEquals(st.widthAtDepth(3), pt.widthAtDepth(3));
+        for (int k= 0; k < 100; k++) {
+            Person p= people[k];
+            Person q= people[rnd.nextInt(100)];
+            assertEquals(st.depth(p), pt.depth(p));
+            assertEquals(st.getParent(p), pt.getParent(p));
+            assertEquals(st.getSharingRoute(p), pt.getSharingRoute(p));
+            assertEquals(st.getSharedAncestor(p, q), pt.getSharedAncestor(p, q));
+            assertEquals(st.getTree(p).getChildrenCount(), pt.getTree(p).getChildrenCount());
+            assertEquals(st.getTree(p).size(), pt.getTree(p).size());
+        }
+        assertEquals(new PersistentSharingTree(st), pt);
+        assertEquals(st, pt.toSharingTree());
+        assertFalse(pt.contains(people[150]));
+    }
+
+    @Test
+    public void testCopiesAreIndependent() {
+        PersistentSharingTree base= new PersistentSharingTree(people[0]);
+        base.insert(people[0], people[1]);
+        base.insert(people[1], people[2]);
+        PersistentSharingTree fork= new PersistentSharingTree(base);
+        assertEquals(base, fork);
+
+        fork.insert(people[1], people[3]);
+        base.insert(people[2], people[3]);
+        assertEquals(people[1], fork.getParent(people[3]));
+        assertEquals(people[2], base.getParent(people[3]));
+        assertEquals(1, base.getTree(people[1]).getChildrenCount());
+        assertEquals(2, fork.getTree(people[1]).getChildrenCount());
+        assertFalse(base.equals(fork));
+
+        // A copy of a copy, and many copies of the same tree
+        PersistentSharingTree fork2= new PersistentSharingTree(fork);
+        fork2.insert(people[0], people[4]);
+        assertFalse(fork.contains(people[4]));
+        List<PersistentSharingTree> forks= new ArrayList<>();
+        for (int k= 0; k < 50; k++) {
+            PersistentSharingTree f= new PersistentSharingTree(base);
+            f.insert(people[3], people[10 + k]);
+            forks.add(f);
+        }
+        for (int k= 0; k < 50; k++) {
+            assertEquals(5, forks.get(k).size());
+            assertTrue(forks.get(k).contains(people[10 + k]));
+            assertFalse(forks.get(k).contains(people[11 + k]));
+        }
+        assertEquals(4, base.size());
+    }
+
+    @Test
+    public void testLongChainOfCopies() {
+        PersistentSharingTree t= new PersistentSharingTree(people[0]);
+        List<PersistentSharingTree> all= new ArrayList<>();
+        for (int k= 1; k < 100; k++) {
+            all.add(t);
+            t= new PersistentSharingTree(t);
+            t.insert(people[k - 1], people[k]);
+        }
+        assertEquals(100, t.size());
+        assertEquals(99, t.depth(people[99]));
+        for (int k= 0; k < all.size(); k++) {
+            assertEquals(k + 1, all.get(k).size());
+            assertFalse(all.get(k).contains(people[k + 1]));
+        }
+    }
+
+    /** A wide tree copied after every insert: neither the inserts nor the
+     * copies may take time proportional to the number of children. */
+    @Test
+    public void testWideTreeWithCopies() {
+        Person[] ps= CascadeShape.people(new Network(), 200_000);
+        PersistentSharingTree t= new PersistentSharingTree(ps[0]);
+        List<PersistentSharingTree> kept= new ArrayList<>();
+        for (int k= 1; k < ps.length; k++) {
+            t.insert(ps[0], ps[k]);
+            PersistentSharingTree copy= new PersistentSharingTree(t);
+            if (k % 10_000 == 0) kept.add(t);
+            t= copy;
+        }
+        assertEquals(ps.length, t.size());
+        assertEquals(ps.length - 1, t.getChildrenCount());
+        for (int j= 0; j < kept.size(); j++) {
+            int k= 10_000 * (j + 1);
+            assertEquals(k + 1, kept.get(j).size());
+            assertEquals(k, kept.get(j).getChildrenCount());
+            assertTrue(kept.get(j).contains(ps[k]));
+            assertFalse(kept.get(j).contains(ps[k + 1]));
+            assertEquals(ps[0], kept.get(j).getParent(ps[k]));
+        }
+    }
+
+    @Test
+    public void testSubtrees() {
+        PersistentSharingTree t= new PersistentSharingTree(people[0]);
+        t.insert(people[0], people[1]);
+        PersistentSharingTree b= t.insert(people[0], people[2]);
+        t.insert(people[2], people[3]);
+        assertFalse(b.contains(people[1]));
+        assertEquals(null, b.getSharingRoute(people[1]));
+        assertEquals(1, b.depth(people[3]));
+        assertEquals(2, b.getChildren().size() + 1);
+        // The subtree sees later inserts into the whole tree
+        t.insert(people[3], people[4]);
+        assertEquals(3, b.size());
+        // A copy of a subtree is a whole tree of its own
+        PersistentSharingTree c= new PersistentSharingTree(b);
+        assertEquals(b, c);
+        c.insert(people[2], people[1]);
+        assertEquals(4, c.size());
+        assertEquals(3, b.size());
+        assertEquals(0, c.depth(people[2]));
+        assertEquals(null, c.getParent(people[2]));
+    }
+
+    @Test
+    public void testToString() {
+        PersistentSharingTree t= new PersistentSharingTree(people[0]);
+        assertEquals(people[0].toString(), t.toString());
+        t.insert(people[0], people[1]);
+        t.insert(people[1], people[2]);
+        t.insert(people[0], people[3]);
+        String sep= SharingTree.SEPARATOR + SharingTree.START_CHILDREN_DELIMITER;
+        assertEquals(people[0] + sep + people[1] + sep + people[2]
+                + SharingTree.END_CHILDREN_DELIMITER + SharingTree.DELIMITER + people[3]
+                + SharingTree.END_CHILDREN_DELIMITER, t.toString());
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** An instance holds many whole SharingTrees (cascades), e.g. one per post,
+ * and an index from each Person to the cascades the Person is in, so that
+ * the cascades of a Person, and the Person's place in each of them, are found
+ * in time proportional to their number instead of by asking every cascade.
+ * <p>
+ * The index stays up to date as people are inserted into and removed from
+ * the cascades, whether through the forest or directly with insert,
+ * insertAll or removeSubtree.
+ * A SharingTree can be in at most one forest at a time. */
+public class SharingForest {
+
+    /** The cascades in this forest: root nodes of whole trees, by identity. */
+    private final Set<SharingTree> cascades= Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** Maps each Person in a cascade of this forest to the cascades the
+     * Person is in, in the order the Person joined them. */
+    private final Map<Person, List<SharingTree>> byPerson= new IdentityHashMap<>();
+
+    /** Is told of each insert into and removal from a cascade of this forest. */
+    private final Indexer listener= new Indexer();
+
+    /** Return a new cascade in this forest with root p and no children.
+     * Throw an IllegalArgumentException if p is null. */
+    public SharingTree newCascade(Person p) throws IllegalArgumentException {
+        SharingTree st= new SharingTree(p);
+        add(st);
+        return st;
+    }
+
+    /** Add whole tree st, with the people already in it, to this forest.
+     * Takes time proportional to the size of st.
+     * Throw an IllegalArgumentException if st is null, is a subtree of a
+     * larger tree, or is already in a forest. */
+    public void add(SharingTree st) throws IllegalArgumentException {
+        if (st == null) throw new IllegalArgumentException("Can't add null to SharingForest");
+        if (st.wholeTree() != st)
+            throw new IllegalArgumentException("Can't add a subtree to SharingForest");
+        if (st.hasChangeListener(Indexer.class))
+            throw new IllegalArgumentException("SharingTree is already in a SharingForest");
+        st.addChangeListener(listener);
+        cascades.add(st);
+        for (Iterator<Person> it= st.preorderIterator(); it.hasNext(); ) {
+            index(it.next(), st);
+        }
+    }
+
+    /** Remove cascade st from this forest and return true, or return false if
+     * st is not in this forest. Takes time proportional to the size of st
+     * (times the number of cascades of its people). */
+    public boolean remove(SharingTree st) {
+        if (st == null || !cascades.remove(st)) return false;
+        st.removeChangeListener(listener);
+        for (Iterator<Person> it= st.preorderIterator(); it.hasNext(); ) {
+            unindex(it.next(), st);
+        }
+        return true;
+    }
+
+    /** Record that p is in cascade top. */
+    private void index(Person p, SharingTree top) {
+        byPerson.computeIfAbsent(p, k -> new ArrayList<>(1)).add(top);
+    }
+
+    /** Record that p is no longer in cascade top. Precondition: p is in top. */
+    private void unindex(Person p, SharingTree top) {
+        List<SharingTree> in= byPerson.get(p);
+        // Compare with ==; equals of SharingTrees compares whole trees
+        for (int k= 0; k < in.size(); k++) {
+            if (in.get(k) == top) {
+                in.remove(k);
+                break;
+            }
+        }
+        if (in.isEmpty()) byPerson.remove(p);
+    }
+
+    /** The listener of the cascades of a forest: it keeps the forest's index
+     * up to date. A Person's place in a cascade is not stored, so moves need
+     * no work. */
+    private class Indexer implements SharingTree.ChangeListener {
+        public void inserted(SharingTree top, Person p) {
+            index(p, top);
+        }
+
+        public void removed(SharingTree top, Person p) {
+            unindex(p, top);
+        }
+
+        public void moved(SharingTree top, Person p) {
+        }
+    }
+
+    /** Return the number of cascades in this forest. */
+    public int size() {
+        return cascades.size();
+    }
+
+    /** Return true iff st is a cascade of this forest. */
+    public boolean contains(SharingTree st) {
+        return cascades.contains(st);
+    }
+
+    /** Return the number of cascades of this forest that p is in. */
+    public int getCascadeCount(Person p) {
+        List<SharingTree> in= byPerson.get(p);
+        return in == null ? 0 : in.size();
+    }
+
+    /** Return the cascades of this forest that p is in, in the order p
+     * joined them (an empty list if none). */
+    public List<SharingTree> getCascades(Person p) {
+        List<SharingTree> in= byPerson.get(p);
+        return in == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(in));
+    }
+
+    /** Return p's place in each cascade of this forest that p is in, in the
+     * order p joined them (an empty list if none). */
+    public List<Appearance> getAppearances(Person p) {
+        List<SharingTree> in= byPerson.get(p);
+        if (in == null) return Collections.emptyList();
+        List<Appearance> res= new ArrayList<>(in.size());
+        for (SharingTree st : in) {
+            res.add(new Appearance(st, st.depth(p), st.getParent(p)));
+        }
+        return res;
+    }
+
+    /** An instance is the place of a Person in one cascade. */
+    public static class Appearance {
+        private final SharingTree tree;  // the cascade
+        private final int depth;         // the depth of the Person in it
+        private final Person parent;     // the Person's parent (null for the root)
+
+        /** Constructor: an instance for a Person at depth depth in cascade
+         * tree, with parent parent. */
+        Appearance(SharingTree tree, int depth, Person parent) {
+            this.tree= tree;
+            this.depth= depth;
+            this.parent= parent;
+        }
+
+        /** Return the cascade. */
+        public SharingTree getTree() {
+            return tree;
+        }
+
+        /** Return the depth of the Person in the cascade. */
+        public int getDepth() {
+            return depth;
+        }
+
+        /** Return the Person the post was seen from (null for the root). */
+        public Person getParent() {
+            return parent;
+        }
+    }
+}
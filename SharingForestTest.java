@@ -0,0 +1,99 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SharingForestTest {
+
+    @Test
+    public void testIndex() {
+        Network n= new Network();
+        Person a= new Person("A", n, 0), b= new Person("B", n, 0), c= new Person("C", n, 0),
+                d= new Person("D", n, 0), e= new Person("E", n, 0);
+
+        SharingForest f= new SharingForest();
+        SharingTree t1= f.newCascade(a);
+        t1.insert(a, b);
+        t1.insert(b, c);
+
+        // A tree built before it is added is indexed when it is added
+        SharingTree t2= new SharingTree(c);
+        t2.insert(c, a);
+        f.add(t2);
+        assertEquals(2, f.size());
+
+        // Inserts made directly into a cascade, also into a subtree, are seen
+        t2.getTree(a).insert(a, d);
+        t2.insertAll(Arrays.asList(new SharingTree.Reshare(c, b)).iterator());
+
+        assertEquals(Arrays.asList(t1, t2), f.getCascades(a));
+        assertEquals(Arrays.asList(t1, t2), f.getCascades(c));
+        assertEquals(Arrays.asList(t2), f.getCascades(d));
+        assertEquals(0, f.getCascades(e).size());
+        assertEquals(2, f.getCascadeCount(b));
+
+        List<SharingForest.Appearance> as= f.getAppearances(a);
+        assertEquals(2, as.size());
+        assertSame(t1, as.get(0).getTree());
+        assertEquals(0, as.get(0).getDepth());
+        assertNull(as.get(0).getParent());
+        assertSame(t2, as.get(1).getTree());
+        assertEquals(1, as.get(1).getDepth());
+        assertSame(c, as.get(1).getParent());
+        assertEquals(2, f.getAppearances(c).get(0).getDepth());
+
+        // Removing a cascade drops it from the index and stops the updates
+        assertTrue(f.remove(t1));
+        assertFalse(f.remove(t1));
+        assertFalse(f.contains(t1));
+        assertEquals(Arrays.asList(t2), f.getCascades(a));
+        t1.insert(c, e);
+        assertEquals(0, f.getCascadeCount(e));
+        f.add(t1);
+        assertEquals(Arrays.asList(t2, t1), f.getCascades(a));
+        assertEquals(1, f.getCascadeCount(e));
+
+        // Removing people from a cascade drops them from the index; moving
+        // them within a cascade changes their place
+        SharingTree gone= t2.removeSubtree(a);
+        assertEquals(Arrays.asList(t1), f.getCascades(a));
+        assertEquals(0, f.getCascadeCount(d));
+        assertFalse(f.contains(gone));
+        t1.reparent(c, a);
+        assertEquals(1, f.getAppearances(c).get(1).getDepth());
+        assertSame(a, f.getAppearances(c).get(1).getParent());
+    }
+
+    @Test
+    public void testAddRejects() {
+        Network n= new Network();
+        Person a= new Person("A", n, 0), b= new Person("B", n, 0);
+        SharingForest f= new SharingForest();
+        SharingTree t= f.newCascade(a);
+        t.insert(a, b);
+        try {
+            f.add(t);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new SharingForest().add(t);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            f.add(t.getTree(b));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            f.add(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(1, f.size());
+        assertEquals(1, f.getCascadeCount(b));
+    }
+}
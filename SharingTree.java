@@ -1,9 +1,27 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** An instance of SharingTree represents the spreading of a Post through
  * a (social) Network of people.
@@ -21,6 +39,11 @@ import java.util.Set;
  * C reshared the post, and D and E saw the post from C.
  * <p>
  * Important note: The name of each person in the sharing tree is unique.
+ * <p>
+ * Each insert is stamped with a time (a long, e.g. milliseconds since the
+ * epoch). The times of the inserts into a tree never decrease, and the root
+ * was there at all times. The "as of" queries answer questions about the
+ * tree as it was at a given time.
  *
  * @author Mshnik and ebirrell
  //TODOs by gjia25
@@ -55,9 +78,79 @@ public class SharingTree {
 
     /** The immediate children of this SharingTree node.
      * Each element of children saw the post from the person at this node.
-     * root is non-null but will be an empty set if this is a leaf. */
+     * root is non-null but will be an empty set if this is a leaf.
+     * To save space, it is the shared empty set until a child is added, then
+     * a SmallSet, and a HashSet once there are more than SMALL children;
+     * only addChild changes it. */
     private Set<SharingTree> children;
 
+    /** The most children kept in a SmallSet. */
+    private static final int SMALL= 8;
+
+    /** The whole tree this node belongs to. Shared by every node of that tree.
+     * A node created by a public constructor is the top of a new Cascade. */
+    private Cascade cascade;
+
+    /** The node whose child this node is (null if this is the root of the
+     * whole tree). */
+    private SharingTree parent;
+
+    /** The depth of this node in the whole tree (0 if parent is null).
+     * Recorded when the node is inserted, and changed when it is moved. */
+    private int depth;
+
+    /** The time at which this node was inserted (Long.MIN_VALUE for a root).
+     * No node was inserted before its parent, unless it was moved (see
+     * reparent) under one inserted later. */
+    private long time;
+
+    /** The position of this node in the preorder of the ancestor index of
+     * its cascade. Meaningful only while that index is up to date. */
+    private int preorder;
+
+    /* The summary of this subtree: structuralHash, subtreeSize and height.
+     * They are meaningful only if summaryValid. An insert clears summaryValid
+     * of the ancestors of the new node and puts each of them (and the new
+     * node) on the list of changed children of its parent. When next asked
+     * for, a summary is brought up to date by adding to it the changes of
+     * the summaries of its changed children since they were last added, so
+     * that it takes time proportional to the number of nodes changed, not to
+     * their numbers of children. A removal or move can make a height
+     * smaller, so it sets rescan of the ancestors, whose summaries are then
+     * recomputed from all their children. */
+
+    /** A hash of the structure of this subtree: of the identity of its root
+     * Person combined, in an order-independent way, with the structural
+     * hashes of its children. Equal subtrees have equal structural hashes. */
+    private int structuralHash;
+
+    /** The number of nodes in this subtree. */
+    private int subtreeSize;
+
+    /** The maximum depth of this subtree (0 for a leaf). */
+    private int height;
+
+    /** The summary of this subtree is up to date. If a node's summary is not
+     * valid, neither are the summaries of its ancestors. */
+    private boolean summaryValid;
+
+    /** The children whose summaries changed since they were last added to
+     * the summary of this node (null if there have been none). A child may
+     * be in the list twice, or no longer be on it (see changedIn). */
+    private List<SharingTree> changed;
+
+    /** The node on whose list of changed children this node is (null if
+     * none). A node whose summary is not valid is on its parent's list. */
+    private SharingTree changedIn;
+
+    /** The subtree size and structural hash of this node when they were last
+     * added to its parent's summary (pushedSize is 0 if they have not been). */
+    private int pushedSize;
+    private int pushedHash;
+
+    /** The summary of this node must be recomputed from all its children. */
+    private boolean rescan;
+
     /** Constructor: a new SharingTree with root p and no children.
      * Throw an IllegalArgumentException if p is null. */
     public SharingTree(Person p) throws IllegalArgumentException {
@@ -65,7 +158,32 @@ public class SharingTree {
             throw new IllegalArgumentException("Can't construct SharingTree with null root");
         root= p;
         hashCode= root.getName().hashCode();
-        children= new HashSet<>();
+        children= Collections.emptySet();
+        time= Long.MIN_VALUE;
+        cascade= new Cascade(this);
+        cascade.add(this);
+        summarizeLeaf();
+    }
+
+    /** Constructor: a new node with root p and no children, inserted at time
+     * time into the children of node par (and the cascade par belongs to).
+     * Precondition: p is not null and is not yet in par's cascade, and time
+     * is at least the time of the last insert into that cascade. */
+    private SharingTree(Person p, SharingTree par, long time) {
+        root= p;
+        this.time= time;
+        hashCode= root.getName().hashCode();
+        children= Collections.emptySet();
+        cascade= par.cascade;
+        parent= par;
+        depth= par.depth + 1;
+        cascade.add(this);
+        summarizeLeaf();
+        par.addChild(this);
+        par.changed(this);
+        if (cascade.listeners != null) {
+            for (ChangeListener l : cascade.listeners) l.inserted(cascade.top, p);
+        }
     }
 
     /** Constructor: a new SharingTree that is a copy of tree p.
@@ -76,18 +194,118 @@ public class SharingTree {
             throw new IllegalArgumentException("Can't construct SharingTree as copy of null");
         root= p.root;
         hashCode= root.getName().hashCode();
-        children= new HashSet<>();
+        children= Collections.emptySet();
+        time= Long.MIN_VALUE;
+        cascade= new Cascade(this);
+        cascade.add(this);
+        summarizeLeaf();
 
-        for (SharingTree st : p.children) {
-            children.add(new SharingTree(st));
+        // Copy the nodes in order of the time from which they are counted as
+        // of (see sizeAsOf), keeping their insert times. That time of a node's
+        // parent is not later, and if it is the same the parent is before the
+        // node in preorder, and the sort is stable.
+        List<SharingTree> nodes= new ArrayList<>();
+        Map<SharingTree, Long> from= new IdentityHashMap<>();
+        p.preorder(null, t -> {
+            if (t != p) nodes.add(t);
+            from.put(t, t == p ? Long.MIN_VALUE : Math.max(t.time, from.get(t.parent)));
+            return true;
+        });
+        nodes.sort(Comparator.comparingLong(from::get));
+        for (SharingTree t : nodes) {
+            // A node moved under a later parent is copied after an insert later than it
+            if (t.time < cascade.lastTime) cascade.timesValid= false;
+            new SharingTree(t.root, cascade.index.get(t.parent.root), t.time);
         }
     }
 
+    /** Return a new SharingTree of people in which the parent of people[i] is
+     * people[parents[i]], for 0 < i < people.length; people[0] is the root.
+     * people[i] is inserted at time times[i] for i > 0 or, if times is null,
+     * all the people are inserted at the same time, the current time.
+     * Throw an IllegalArgumentException if people contains null or a Person
+     * twice, or if parents[i] is not in 0..i-1 for some i > 0. */
+    static SharingTree assemble(Person[] people, int[] parents, long[] times)
+            throws IllegalArgumentException {
+        SharingTree st= new SharingTree(people[0]);
+        SharingTree[] nodes= new SharingTree[people.length];
+        nodes[0]= st;
+        long now= st.cascade.now();
+        for (int i= 1; i < people.length; i++) {
+            if (parents[i] < 0 || parents[i] >= i)
+                throw new IllegalArgumentException("Parent of node " + i + " is not before it");
+            if (people[i] == null || st.cascade.index.containsKey(people[i]))
+                throw new IllegalArgumentException("Node " + i + " is null or a duplicate");
+            long time= times == null ? now : times[i];
+            // The nodes are not in order of time, so the time index is rebuilt when needed
+            if (time < st.cascade.lastTime) st.cascade.timesValid= false;
+            nodes[i]= new SharingTree(people[i], nodes[parents[i]], time);
+        }
+        st.cascade.modCount++;
+        return st;
+    }
+
     /** Return the person that is at the root of this SharingTree */
     public Person getRoot() {
         return root;
     }
 
+    /* Add t to the children of this node, switching to a larger kind of set
+     * (see children) if needed. Precondition: t is not a child of this node. */
+    private void addChild(SharingTree t) {
+        if (children.isEmpty()) {
+            children= new SmallSet();
+        } else if (children.size() == SMALL && children instanceof SmallSet) {
+            children= new HashSet<>(children);
+        }
+        children.add(t);
+    }
+
+    /* Make the summary of this node that of a leaf. */
+    private void summarizeLeaf() {
+        structuralHash= mix(System.identityHashCode(root));
+        subtreeSize= 1;
+        height= 0;
+        summaryValid= true;
+    }
+
+    /* Record that the summary of c, a child of this node, has changed: put
+     * c on the list of changed children of this node, and mark the summaries
+     * of this node and its ancestors out of date, up to the first one that
+     * already is (and so is already on its parent's list). */
+    private void changed(SharingTree c) {
+        SharingTree t= this;
+        while (true) {
+            if (c.changedIn != t) {
+                if (t.changed == null) t.changed= new ArrayList<>();
+                t.changed.add(c);
+                c.changedIn= t;
+            }
+            if (!t.summaryValid || t.parent == null) {
+                t.summaryValid= false;
+                return;
+            }
+            t.summaryValid= false;
+            c= t;
+            t= t.parent;
+        }
+    }
+
+    /* Take c, a child of this node, out of the children of this node and out
+     * of its summary, and make this node and its ancestors recompute their
+     * summaries from all their children (c may have been their highest). */
+    private void detach(SharingTree c) {
+        children.remove(c);
+        c.changedIn= null;
+        c.pushedSize= 0;
+        // If a node has rescan set, so do its ancestors
+        for (SharingTree t= this; t != null && !t.rescan; t= t.parent) {
+            t.rescan= true;
+            t.summaryValid= false;
+            if (t.parent != null) t.parent.changed(t);
+        }
+    }
+
     /** Return the number of direct children of this SharingTree */
     public int getChildrenCount() {
         return children.size();
@@ -98,34 +316,245 @@ public class SharingTree {
         return new HashSet<>(children);
     }
 
+    /** Return an iterator over the people of this SharingTree in preorder:
+     * each person before the people below it, siblings in no particular order.
+     * It keeps a stack of the nodes still to be visited and copies no sets
+     * of children. The iterator is fail-fast: next throws a
+     * ConcurrentModificationException if the whole tree has changed since
+     * the iterator was made. */
+    public Iterator<Person> preorderIterator() {
+        return new NodeIterator(this, true);
+    }
+
+    /** Return an iterator over the people of this SharingTree in level order:
+     * the root, then the people one level below it, then the people two
+     * levels below it, and so on, siblings in no particular order.
+     * It keeps a queue of the nodes still to be visited and copies no sets
+     * of children. The iterator is fail-fast, like preorderIterator. */
+    public Iterator<Person> levelOrderIterator() {
+        return new NodeIterator(this, false);
+    }
+
+    /** Return a Spliterator over the people of this SharingTree, in no
+     * particular order. It splits by handing whole subtrees to the new
+     * Spliterator, about half of the remaining people at a time, and knows
+     * the exact number of people it (and each part) covers. It is fail-fast,
+     * like preorderIterator. */
+    public Spliterator<Person> spliterator() {
+        summarize(null);
+        return new NodeSpliterator(this);
+    }
+
+    /** Return a sequential Stream of the people of this SharingTree. */
+    public Stream<Person> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /** Return a parallel Stream of the people of this SharingTree, split by
+     * subtrees (see spliterator). */
+    public Stream<Person> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
     /** Insert c in this SharingTree as a child of p and
      * return the SharingTree whose root is the new child.
      * Throw an IllegalArgumentException if:<br>
      * -- p or c is null,<br>
      * -- c is already in this SharingTree, or<br>
-     * -- p is not in this SharingTree */
+     * -- p is not in this SharingTree<br>
+     * Since names are unique across the whole tree, c is also rejected if it
+     * is in the tree that this SharingTree is a subtree of.
+     * Takes constant time when this is the root of the whole tree.
+     * The insert is stamped with the current time (System.currentTimeMillis(),
+     * or the time of the last insert if that is later). */
     public SharingTree insert(Person p, Person c) throws IllegalArgumentException {
         //TODO 1
-    	if (p == null || c == null || this.contains(c) || !this.contains(p))
-    		throw new IllegalArgumentException("Can't construct SharingTree");
+        return insert(p, c, cascade.now());
+    }
 
-    	SharingTree cTree = new SharingTree(c);
-    	getTree(p).children.add(cTree);
-    	return cTree;
+    /** Insert c in this SharingTree as a child of p at time time, as
+     * insert(p, c) does, and return the SharingTree whose root is the new child.
+     * Throw an IllegalArgumentException if insert(p, c) would or if time is
+     * before the time of the last insert into the whole tree. */
+    public SharingTree insert(Person p, Person c, long time) throws IllegalArgumentException {
+        if (time < cascade.lastTime)
+            throw new IllegalArgumentException("Can't insert before the last insert");
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.INSERT);
+        SharingTree cTree = add(p, c, time, call);
+        if (cTree == null)
+            throw new IllegalArgumentException("Can't construct SharingTree");
+        end(call);
+        return cTree;
+    }
+
+    /* Insert c as a child of p at time time as insert(p, c, time) does and
+     * return the new node, but return null instead of throwing an exception
+     * if c can't be inserted. The nodes visited are counted in call.
+     * Precondition: time is not before the last insert. */
+    private SharingTree add(Person p, Person c, long time, SharingTreeMetrics.Call call) {
+    	if (p == null || c == null || cascade.index.containsKey(c)) return null;
+    	SharingTree pTree = find(p, call);
+    	if (pTree == null) return null;
+
+    	cascade.modCount++;
+    	return new SharingTree(c, pTree, time);
+    }
+
+    /** Insert into this SharingTree, in order, the child of each reshare given
+     * by edges as a child of its parent, in time proportional to the number of
+     * reshares (when this is the root of the whole tree).
+     * A reshare is rejected, and the others are still inserted, if insert would
+     * throw an IllegalArgumentException for it: its parent or child is null,
+     * its child is already in the tree, or its parent is not (yet) in the tree.
+     * A null reshare is rejected too. All the reshares are stamped with the
+     * time insertAll is called.
+     * Throw an InvalidReshareException listing all rejected reshares if
+     * there are any. */
+    public void insertAll(Iterator<Reshare> edges) throws InvalidReshareException {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.INSERT_ALL);
+        List<Reshare> rejected= new ArrayList<>();
+        long now= cascade.now();
+        while (edges.hasNext()) {
+            Reshare e= edges.next();
+            if (e == null || add(e.parent, e.child, now, call) == null) {
+                rejected.add(e);
+            }
+        }
+        end(call);
+        if (!rejected.isEmpty()) throw new InvalidReshareException(this, rejected);
+    }
+
+    /** Same as insertAll(edges.iterator()). */
+    public void insertAll(Stream<Reshare> edges) throws InvalidReshareException {
+        insertAll(edges.iterator());
+    }
+
+    /** Return a new SharingTree with root p that contains the reshares of
+     * edges, inserted in order as insertAll does.
+     * Throw an IllegalArgumentException if p is null, and an
+     * InvalidReshareException, whose getTree() is the tree of all valid
+     * reshares, if any reshares are rejected. */
+    public static SharingTree build(Person p, Iterator<Reshare> edges)
+            throws IllegalArgumentException {
+        SharingTree st= new SharingTree(p);
+        st.insertAll(edges);
+        return st;
+    }
+
+    /** Same as build(p, edges.iterator()). */
+    public static SharingTree build(Person p, Stream<Reshare> edges)
+            throws IllegalArgumentException {
+        return build(p, edges.iterator());
+    }
+
+    /** Remove p and everybody below p from this SharingTree and return them
+     * as a new SharingTree with root p (whose other people keep their depths
+     * below p and their insert times).
+     * Takes time proportional to the size of the subtree that is removed;
+     * the sizes, depths and widths of this tree stay correct.
+     * Throw an IllegalArgumentException if p is null, is not in this
+     * SharingTree or is the root of this SharingTree. */
+    public SharingTree removeSubtree(Person p) throws IllegalArgumentException {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.REMOVE_SUBTREE);
+        SharingTree c= find(p, call);
+        if (c == null) throw new IllegalArgumentException("Person not in SharingTree");
+        if (c == this) throw new IllegalArgumentException("Can't remove the root of SharingTree");
+
+        Cascade old= cascade;
+        old.modCount++;
+        c.parent.detach(c);
+
+        // Move the nodes of c's subtree to a new tree, in preorder so that
+        // each node's parent has its new depth when the node is moved
+        Cascade fresh= new Cascade(c);
+        fresh.timesValid= false;
+        int base= c.depth;
+        c.preorder(call, t -> {
+            old.remove(t);
+            if (old.listeners != null) {
+                for (ChangeListener l : old.listeners) l.removed(old.top, t.root);
+            }
+            if (t == c) {
+                t.parent= null;
+                t.time= Long.MIN_VALUE;
+            }
+            t.depth= t.depth - base;
+            t.cascade= fresh;
+            fresh.add(t);
+            return true;
+        });
+        end(call);
+        return c;
+    }
+
+    /** Make newParent the parent of child in this SharingTree: child, and
+     * everybody below child, now saw the post through newParent.
+     * Takes time proportional to the size of child's subtree; the sizes,
+     * depths and widths of this tree stay correct. child keeps its insert
+     * time, even if newParent was inserted later; the "as of" queries then
+     * count child from the time newParent was inserted (see sizeAsOf).
+     * Throw an IllegalArgumentException if child or newParent is null or not
+     * in this SharingTree, if child is the root of this SharingTree, or if
+     * newParent is child or below child (the tree would have a cycle). */
+    public void reparent(Person child, Person newParent) throws IllegalArgumentException {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.REPARENT);
+        SharingTree c= find(child, call);
+        SharingTree np= find(newParent, call);
+        if (c == null || np == null) throw new IllegalArgumentException("Person not in SharingTree");
+        if (c == this) throw new IllegalArgumentException("Can't reparent the root of SharingTree");
+
+        // np is below c iff going up from np to c's depth gets to c;
+        // that path is within c's subtree, so it is not longer than its height
+        SharingTree anc= np;
+        while (anc.depth > c.depth) {
+            anc= anc.parent;
+        }
+        visit(call, np.depth - anc.depth);
+        if (anc == c) throw new IllegalArgumentException("Reparent would create a cycle");
+        if (c.parent == np) {
+            end(call);
+            return;
+        }
+
+        cascade.modCount++;
+        cascade.timesValid= false;
+        c.parent.detach(c);
+        int delta= np.depth + 1 - c.depth;
+        if (delta != 0) {
+            c.preorder(call, t -> {
+                cascade.narrow(t.depth);
+                t.depth= t.depth + delta;
+                cascade.widen(t.depth);
+                return true;
+            });
+        }
+        c.parent= np;
+        np.addChild(c);
+        np.changed(c);
+        if (cascade.listeners != null) {
+            for (ChangeListener l : cascade.listeners) l.moved(cascade.top, child);
+        }
+        end(call);
     }
 
     /** Return the number of people in this SharingTree.
-     * Note: If this is a leaf, the size is 1 (just the root) */
+     * Note: If this is a leaf, the size is 1 (just the root)
+     * Takes constant time when this is the root of the whole tree, and
+     * otherwise constant time apart from updating the sizes of the subtrees
+     * that have changed since the last call. */
     public int size() {
         //TODO 2
-    	int size = 1;
-    	if (children == null) return 1;
-    	else {
-    		for (SharingTree st : children) {
-        		size += st.size();
-        	}
-    	}
-    	return size;
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.SIZE);
+        int size= size(call);
+        end(call);
+        return size;
+    }
+
+    /* Return size(), counting the nodes visited in call. */
+    private int size(SharingTreeMetrics.Call call) {
+    	if (parent == null) return cascade.index.size();
+    	summarize(call);
+    	return subtreeSize;
     }
 
     /**Return the depth at which p occurs in this SharingTree,
@@ -134,55 +563,72 @@ public class SharingTree {
      * If p is a child of this SharingTree, then depth(p) is 1. etc. */
     public int depth(Person p) {
         //TODO 3
-    	if (root == p) {
-    		return 0;
-    	}
-    	if (this.contains(p)) {
-    		for (SharingTree st : children) {
-    			return 1 + st.depth(p);
-    		}
-    	}
-    	return -1;
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.DEPTH);
+    	SharingTree node = find(p, call);
+        end(call);
+    	if (node == null) return -1;
+    	return node.depth - depth;
     }
 
     /** If p is in this tree, return the SharingTree object in this tree
      * that contains p. If p is not in this tree, return null.
      * <p>
      * Example: Calling getTree(root) should return this.
+     * Takes constant time when this is the root of the whole tree, and
+     * otherwise time proportional to the depth of p below this node.
      */
     public SharingTree getTree(Person p) {
-        if (root == p) return this; //Base case - look here
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_TREE);
+        SharingTree node= find(p, call);
+        end(call);
+        return node;
+    }
 
-        // Recursive case - ask children to look
-        for (SharingTree st : children) {
-            SharingTree search= st.getTree(p);
-            if (search != null) return search;
-        }
+    /* Return getTree(p), counting the nodes visited in call. */
+    private SharingTree find(Person p, SharingTreeMetrics.Call call) {
+        if (root == p) return this;
+
+        SharingTree node= cascade.index.get(p);
+        if (node == null || node.depth <= depth) return null;
+        if (parent == null) return node;
 
-        return null; // Not found
+        // This is a subtree: p is in it iff this node is an ancestor of p's node
+        SharingTree anc= node;
+        while (anc.depth > depth) {
+            anc= anc.parent;
+        }
+        visit(call, node.depth - depth);
+        return anc == this ? node : null;
     }
 
-    /** Return true iff this SharingTree contains p. */
+    /** Return true iff this SharingTree contains p.
+     * Takes constant time when this is the root of the whole tree. */
     public boolean contains(Person p) {
-        /* Note: This SharingTree contains p iff the root of this
-         * SharingTree is p or if one of p's children contains p. */
-        if (root == p) return true;
-        for (SharingTree st : children) {
-            if (st.contains(p)) return true;
-        }
-        return false;
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.CONTAINS);
+        boolean found= find(p, call) != null;
+        end(call);
+        return found;
     }
 
 
     /** Return the maximum depth of this SharingTree, i.e. the longest path from
      * the root to a leaf. Example. If this SharingTree is a leaf, return 0.
+     * Takes constant time, apart from updating the depths of the subtrees
+     * that have grown since the last call (none when this is the root of
+     * the whole tree).
      */
     public int maxDepth() {
-        int maxDepth= 0;
-        for (SharingTree dt : children) {
-            maxDepth= Math.max(maxDepth, dt.maxDepth() + 1);
-        }
-        return maxDepth;
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.MAX_DEPTH);
+        int max= maxDepth(call);
+        end(call);
+        return max;
+    }
+
+    /* Return maxDepth(), counting the nodes visited in call. */
+    private int maxDepth(SharingTreeMetrics.Call call) {
+        if (parent == null) return cascade.levels - 1;
+        summarize(call);
+        return height;
     }
 
     /** Return the width of this tree at depth d (i.e. the number of sharing
@@ -202,24 +648,39 @@ public class SharingTree {
      * A.widthAtDepth(2) = 3,  A.widthAtDepth(3) = 1,
      * A.widthAtDepth(4) = 0.
      * C.widthAtDepth(0) = 1,  C.widthAtDepth(1) = 2
+     * <p>
+     * Takes constant time when this is the root of the whole tree.
      */
     public int widthAtDepth(int d) throws IllegalArgumentException {
         //TODO 4
-    	int width = 0;
-    	if (d == 0) return 1;
-
-    	for (SharingTree st : children) {
-            width += st.widthAtDepth(d-1);
+    	if (d < 0) throw new IllegalArgumentException("Depth can't be negative");
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.WIDTH_AT_DEPTH);
+    	if (parent == null) {
+            end(call);
+            return d < cascade.levels ? cascade.widths[d] : 0;
         }
 
-    	return width;
+    	// Count the nodes at depth d without going below them
+    	int[] width = {0};
+    	levelOrder(call, t -> {
+    		if (t.depth - depth < d) return true;
+    		width[0]++;
+    		return false;
+    	});
+        end(call);
+    	return width[0];
     }
 
     /** Return the maximum width of all the widths in this tree, i.e. the
      * maximum value that could be returned from widthAtDepth for this tree.
+     * Takes constant time when this is the root of the whole tree, and
+     * otherwise time proportional to the size of this tree.
      */
     public int maxWidth() {
-        return maxWidthImplementationOne(this);
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.MAX_WIDTH);
+        int max= parent == null ? cascade.maxWidth : maxWidthImplementationTwo(this, call);
+        end(call);
+        return max;
     }
 
     // Simple implementation of maxWith. Relies on widthAtDepth.
@@ -236,11 +697,16 @@ public class SharingTree {
     /* Better implementation of maxWidth. Caches results in an array.
      * Takes time proportional to the size of t. */
     static int maxWidthImplementationTwo(SharingTree t) {
+        return maxWidthImplementationTwo(t, null);
+    }
+
+    /* Return maxWidthImplementationTwo(t), counting the nodes visited in call. */
+    private static int maxWidthImplementationTwo(SharingTree t, SharingTreeMetrics.Call call) {
         // For each integer d, 0 <= d <= maximum depth of t, store in
         // widths[d] the number of nodes at depth d in t.
-        // The calculation is done by calling recursive procedure addToWidths.
-        int[] widths = new int[t.maxDepth() + 1];   // initially, contains 0's
-        t.addToWidths(0, widths);
+        // The calculation is done by calling procedure addToWidths.
+        int[] widths = new int[t.maxDepth(call) + 1];   // initially, contains 0's
+        t.addToWidths(0, widths, call);
 
         int max = 0;
         for (int width : widths) {
@@ -250,12 +716,13 @@ public class SharingTree {
     }
 
     /* For each node of this SharingTree that is at some depth d in this
-     * SharingTree add 1 to widths[depth + d]. */
-    private void addToWidths(int depth, int[] widths) {
-        widths[depth]++;        //the root of this SharintTree is at depth d = 0
-        for (SharingTree dt : children) {
-            dt.addToWidths(depth + 1, widths);
-        }
+     * SharingTree add 1 to widths[depth + d]. Count the nodes visited in call. */
+    private void addToWidths(int depth, int[] widths, SharingTreeMetrics.Call call) {
+        int offset= depth - this.depth;   //the root of this SharingTree is at depth d = 0
+        preorder(call, t -> {
+            widths[offset + t.depth]++;
+            return true;
+        });
     }
 
     /* Better implementation of maxWidth. Caches results in a HashMap.
@@ -263,12 +730,13 @@ public class SharingTree {
     static int maxWidthImplementationThree(SharingTree t) {
         // For each possible depth d >= 0 in tree t, widthMap will contain the
         // entry (d, number of nodes at depth d in t). The calculation is
-        // done using recursive procedure addToWidthMap.
+        // done using procedure addToWidthMap.
 
         // For each integer d, 0 <= d <= maximum depth of t, add to
         // widthMap an entry <d, 0>.
         HashMap<Integer, Integer> widthMap = new HashMap<>();
-        for (int d= 0; d <= t.maxDepth() + 1; d= d+1) {
+        int maxDepth= t.maxDepth();
+        for (int d= 0; d <= maxDepth + 1; d= d+1) {
             widthMap.put(d, 0);
         }
 
@@ -284,10 +752,169 @@ public class SharingTree {
     /* For each node of this SharingTree that is at some depth d in this SharingTree,
      * add 1 to the value part of entry <depth + d, ...> of widthMap. */
     private void addToWidthMap(int depth, HashMap<Integer, Integer> widthMap) {
-        widthMap.put(depth, widthMap.get(depth) + 1);  //the root is at depth d = 0
-        for (SharingTree dt : children) {
-            dt.addToWidthMap(depth + 1, widthMap);
+        int offset= depth - this.depth;   //the root is at depth d = 0
+        preorder(null, t -> {
+            int d= offset + t.depth;
+            widthMap.put(d, widthMap.get(d) + 1);
+            return true;
+        });
+    }
+
+    /** Return the same value as maxWidth(), computing the widths at all
+     * depths with fork/join tasks on the common ForkJoinPool when it takes
+     * a traversal. This is the only method that uses fork/join tasks: size
+     * and maxDepth are kept in the nodes, so they need no parallel version. */
+    public int parallelMaxWidth() {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.PARALLEL_MAX_WIDTH);
+        int max= 0;
+        if (parent == null) {
+            max= cascade.maxWidth;
+        } else {
+            summarize(call);  // the tasks use the subtree sizes
+            for (int width : new WidthsTask(this).invoke()) {
+                max= Math.max(max, width);
+            }
+            visit(call, subtreeSize);
+        }
+        end(call);
+        return max;
+    }
+
+    /** Return the time at which p was inserted into this SharingTree
+     * (Long.MIN_VALUE if p is the root of the whole tree).
+     * Throw an IllegalArgumentException if p is not in this SharingTree. */
+    public long getInsertTime(Person p) throws IllegalArgumentException {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_INSERT_TIME);
+        SharingTree node= find(p, call);
+        if (node == null) throw new IllegalArgumentException("Person not in SharingTree");
+        end(call);
+        return node.time;
+    }
+
+    /** Return the number of people in this SharingTree as of time time, i.e.
+     * not counting those inserted after time (0 if the root of this
+     * SharingTree was inserted after time). A person moved (see reparent)
+     * under someone inserted after it is not counted before that person is,
+     * nor are the people below it; so a person is counted from the latest
+     * insert time on the path to it from the root of the whole tree, for a
+     * subtree as for the whole tree.
+     * Takes time logarithmic in the size of the tree when this is the root of
+     * the whole tree, and otherwise time proportional to the answer plus the
+     * depth of this SharingTree in the whole tree.
+     * (After removeSubtree or reparent, the first "as of" query on the whole
+     * tree rebuilds its index of times, in time n log n for n its size.) */
+    public int sizeAsOf(long time) {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.SIZE_AS_OF);
+        int[] size= {0};
+        if (parent == null) {
+            cascade.validateTimes(call);
+            size[0]= 1 + countUpTo(cascade.times, cascade.index.size() - 1, time);
+        } else if (countedFrom(call) <= time) {
+            // Below a node that is counted, a node is counted iff its own
+            // insert time is not after time
+            preorder(call, t -> {
+                if (t.time > time) return false;
+                size[0]++;
+                return true;
+            });
+        }
+        end(call);
+        return size[0];
+    }
+
+    /** Return the maximum depth of this SharingTree as of time time (see
+     * sizeAsOf), or -1 if the root of this SharingTree was inserted after time.
+     * Takes time logarithmic in the maximum depth when this is the root of
+     * the whole tree, and otherwise time proportional to the size as of time
+     * plus the depth of this SharingTree in the whole tree. */
+    public int maxDepthAsOf(long time) {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.MAX_DEPTH_AS_OF);
+        int[] max= {-1};
+        if (parent == null) {
+            // The first node counted at depth d + 1 is not counted before the
+            // first at depth d, since it is not counted before its parent
+            cascade.validateTimes(call);
+            int lo= 0;
+            int hi= cascade.levels;  // inv: depth lo has a node by time; depth hi has none
+            while (hi - lo > 1) {
+                int mid= (lo + hi) >>> 1;
+                if (cascade.depthTimes[mid][0] <= time) lo= mid;
+                else hi= mid;
+            }
+            max[0]= lo;
+        } else if (countedFrom(call) <= time) {
+            preorder(call, t -> {
+                if (t.time > time) return false;
+                max[0]= Math.max(max[0], t.depth - depth);
+                return true;
+            });
+        }
+        end(call);
+        return max[0];
+    }
+
+    /** Return the width of this SharingTree at depth d as of time time (see
+     * sizeAsOf and widthAtDepth).
+     * Throw an IllegalArgumentException if d < 0.
+     * Takes time logarithmic in the width at depth d when this is the root of
+     * the whole tree, and otherwise time proportional to the size as of time
+     * plus the depth of this SharingTree in the whole tree. */
+    public int widthAtDepthAsOf(int d, long time) throws IllegalArgumentException {
+        if (d < 0) throw new IllegalArgumentException("Depth can't be negative");
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.WIDTH_AT_DEPTH_AS_OF);
+        int[] width= {0};
+        if (parent == null) {
+            if (d == 0) {
+                width[0]= 1;
+            } else if (d < cascade.levels) {
+                cascade.validateTimes(call);
+                width[0]= countUpTo(cascade.depthTimes[d], cascade.widths[d], time);
+            }
+        } else if (countedFrom(call) <= time) {
+            levelOrder(call, t -> {
+                if (t.time > time) return false;
+                if (t.depth - depth < d) return true;
+                width[0]++;
+                return false;
+            });
         }
+        end(call);
+        return width[0];
+    }
+
+    /* Return the time from which this node is counted in the "as of"
+     * queries: the latest insert time on the path to it from the root of the
+     * whole tree. Count the nodes visited in call. */
+    private long countedFrom(SharingTreeMetrics.Call call) {
+        long from= Long.MIN_VALUE;
+        for (SharingTree t= this; t != null; t= t.parent) {
+            from= Math.max(from, t.time);
+        }
+        visit(call, depth + 1);
+        return from;
+    }
+
+    /** Return a COPY of the set of children of this SharingTree as of time
+     * time, i.e. of those inserted at or before time. */
+    public Set<SharingTree> getChildrenAsOf(long time) {
+        Set<SharingTree> kids= new HashSet<>();
+        for (SharingTree st : children) {
+            if (st.time <= time) kids.add(st);
+        }
+        return kids;
+    }
+
+    /* Return the number of elements of a[0..n-1] that are <= time.
+     * Precondition: a[0..n-1] is sorted. */
+    private static int countUpTo(long[] a, int n, long time) {
+        int lo= 0;
+        int hi= n;  // inv: a[0..lo-1] <= time < a[hi..n-1]
+        while (lo < hi) {
+            int mid= (lo + hi) >>> 1;
+            if (a[mid] <= time) lo= mid + 1;
+            else hi= mid;
+        }
+        return lo;
     }
 
     /** Return the route the Post took to get from "here" (the root of
@@ -313,22 +940,62 @@ public class SharingTree {
      */
     public List<Person> getSharingRoute(Person c) {
         //TODO 5
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_SHARING_ROUTE);
+    	SharingTree node = find(c, call);
+    	if (node == null) {
+            end(call);
+            return null;
+        }
 
+    	// Follow parent links from c's node up to this node
     	LinkedList<Person> sharingRoute = new LinkedList<Person>();
-    	sharingRoute.add(root);
-
-    	if (this.root == c) { return sharingRoute; }
-    	else if (!this.contains(c)) { return null; }
-    	else {
-    		for (SharingTree st : children) {
-        		if(st.contains(c)) {
-        			sharingRoute.addAll(st.getSharingRoute(c));
-        		}
-        	}
+    	for (SharingTree st = node; st != this; st = st.parent) {
+    		sharingRoute.addFirst(st.root);
     	}
+    	sharingRoute.addFirst(root);
+        visit(call, node.depth - depth);
+        end(call);
     	return sharingRoute;
     }
 
+    /** Return a map from each person of targets that is in this SharingTree
+     * to the route the Post took to get from the root of this SharingTree to
+     * that person, as an array: the same people, in the same order, as
+     * getSharingRoute would return. People of targets that are not in this
+     * SharingTree (and null) are not in the map. The map compares people with
+     * ==, as this SharingTree does.
+     * Takes time proportional to the total length of the routes, since each
+     * route is filled in by following parent links up from its last person.
+     * Throw an IllegalArgumentException if targets is null. */
+    public Map<Person, Person[]> getSharingRoutes(Collection<Person> targets)
+            throws IllegalArgumentException {
+        if (targets == null)
+            throw new IllegalArgumentException("Can't get routes of null");
+        Map<Person, Person[]> routes= new IdentityHashMap<>();
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_SHARING_ROUTES);
+        long steps= 0;
+        for (Person c : targets) {
+            SharingTree node= c == null ? null : cascade.index.get(c);
+            if (node == null || node.depth < depth || routes.containsKey(c)) continue;
+
+            // Fill the route from the end; it is not in this subtree if
+            // the walk gets to this node's depth somewhere else
+            Person[] route= new Person[node.depth - depth + 1];
+            SharingTree st= node;
+            for (int i= route.length - 1; i > 0; i--) {
+                route[i]= st.root;
+                st= st.parent;
+            }
+            steps= steps + route.length;
+            if (st != this) continue;
+            route[0]= root;
+            routes.put(c, route);
+        }
+        visit(call, steps);
+        end(call);
+        return routes;
+    }
+
     /** Return the immediate parent of c (null if c is not in this
      * SharingTree).
      * <p>
@@ -348,18 +1015,11 @@ public class SharingTree {
      * E.getParent(F) returns null.
      */
     public Person getParent(Person c) {
-        // Base case
-        for (SharingTree dt : children) {
-            if (dt.root == c) return root;
-        }
-
-        // Recursive case - ask children to look
-        for (SharingTree dt : children) {
-            Person parent = dt.getParent(c);
-            if (parent != null) return parent;
-        }
-
-        return null; //Not found
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_PARENT);
+        SharingTree node= find(c, call);
+        end(call);
+        if (node == null || node == this) return null;
+        return node.parent.root;
     }
 
     /** If either child1 or child2 is null or is not in this SharingTree, return null.
@@ -391,17 +1051,134 @@ public class SharingTree {
      */
     public Person getSharedAncestor(Person child1, Person child2) {
         //TODO 6
-    	if (child1 == null || child2 == null ||
-    		!this.contains(child1) || !this.contains(child2)) {
-    		return null;
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.GET_SHARED_ANCESTOR);
+    	SharingTree n1 = child1 == null ? null : find(child1, call);
+    	SharingTree n2 = child2 == null ? null : find(child2, call);
+    	if (n1 == null || n2 == null) {
+            end(call);
+            return null;
+        }
+
+    	// Both nodes are in this subtree, so their shared ancestor is too
+    	if (cascade.ancestors != null) {
+            Person a= cascade.ancestors(call).sharedAncestor(n1, n2).root;
+            end(call);
+    		return a;
     	}
 
-    	List<Person> route1 = getSharingRoute(child1);
-    	List<Person> route2 = getSharingRoute(child2);
-    	for (int i= Math.min(route1.size(), route2.size())-1; i>= 0; i--) {
-    		if(route1.get(i) == route2.get(i)) { return route1.get(i); }
+    	// Without the index, follow parent links up to the shared ancestor
+        int steps= n1.depth + n2.depth;
+    	while (n1.depth > n2.depth) n1 = n1.parent;
+    	while (n2.depth > n1.depth) n2 = n2.parent;
+    	while (n1 != n2) {
+    		n1 = n1.parent;
+    		n2 = n2.parent;
     	}
-        return null;
+        visit(call, steps - 2 * n1.depth);
+        end(call);
+        return n1.root;
+    }
+
+    /** Keep an ancestor index for the whole tree this SharingTree belongs to,
+     * so that getSharedAncestor takes constant time (after the time needed to
+     * find the two people with getTree).
+     * The index takes space proportional to n log n, for n the size of the
+     * whole tree. It is built on the first getSharedAncestor call and rebuilt
+     * on the first call after a change to the tree, so it pays off for many queries on a
+     * tree that no longer grows. */
+    public void buildAncestorIndex() {
+        if (cascade.ancestors == null) {
+            cascade.ancestors= new AncestorIndex();
+        }
+    }
+
+    /** Record the calls of the public operations on the whole tree this
+     * SharingTree belongs to, the nodes they visit and their latencies in m
+     * (see SharingTreeMetrics). If m is null, stop recording. While nothing
+     * is recorded, a call costs only a null check more. */
+    public void setMetrics(SharingTreeMetrics m) {
+        cascade.metrics= m;
+    }
+
+    /** Return the metrics the operations on the whole tree this SharingTree
+     * belongs to are recorded in (null if they are not recorded). */
+    public SharingTreeMetrics getMetrics() {
+        return cascade.metrics;
+    }
+
+    /** Return the root node of the whole tree this SharingTree belongs to. */
+    SharingTree wholeTree() {
+        return cascade.top;
+    }
+
+    /** Add l to the listeners of the whole tree this SharingTree belongs to:
+     * it is told of each later insert into, removal from and move within
+     * that tree. Precondition: l is not null. */
+    void addChangeListener(ChangeListener l) {
+        if (cascade.listeners == null) cascade.listeners= new ArrayList<>(1);
+        cascade.listeners.add(l);
+    }
+
+    /** Remove l from the listeners of the whole tree this SharingTree belongs
+     * to, and return true, or return false if l is not one of them. */
+    boolean removeChangeListener(ChangeListener l) {
+        if (cascade.listeners == null || !cascade.listeners.remove(l)) return false;
+        if (cascade.listeners.isEmpty()) cascade.listeners= null;
+        return true;
+    }
+
+    /** Return true iff the whole tree this SharingTree belongs to has a
+     * listener of class c (or a subclass of c). */
+    boolean hasChangeListener(Class<? extends ChangeListener> c) {
+        if (cascade.listeners == null) return false;
+        for (ChangeListener l : cascade.listeners) {
+            if (c.isInstance(l)) return true;
+        }
+        return false;
+    }
+
+    /** Return a compact, immutable copy of this SharingTree that answers the
+     * read queries (size, depth, maxWidth, getSharingRoute, getSharedAncestor,
+     * toString, ...) in a small fraction of the space. Later inserts into this
+     * SharingTree do not change the copy. */
+    public FrozenSharingTree freeze() {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.FREEZE);
+        int n= size(call);
+        Person[] people= new Person[n];
+        int[] parents= new int[n];
+        int[] depths= new int[n];
+        long[] times= new long[n];
+        int[] childStart= new int[n + 1];
+
+        // Number the nodes in preorder; ids holds the numbers of the nodes on
+        // the path from this node to the node being visited
+        int[] next= {0};
+        int[] ids= new int[maxDepth(call) + 1];
+        depthFirst(call, t -> {
+            int d= t.depth - depth;
+            int i= next[0]++;
+            ids[d]= i;
+            people[i]= t.root;
+            parents[i]= d == 0 ? -1 : ids[d - 1];
+            depths[i]= d;
+            times[i]= t.time;
+            childStart[i + 1]= t.children.size();
+            return true;
+        }, null);
+
+        // Group the children by parent, in preorder within each group
+        for (int i= 0; i < n; i++) {
+            childStart[i + 1]+= childStart[i];
+        }
+        int[] childIds= new int[n - 1];
+        int[] filled= new int[n];
+        for (int i= 1; i < n; i++) {
+            int p= parents[i];
+            childIds[childStart[p] + filled[p]]= i;
+            filled[p]++;
+        }
+        end(call);
+        return new FrozenSharingTree(people, parents, depths, times, childStart, childIds);
     }
 
     /** Return a (single line) String representation of this SharingTree.
@@ -425,20 +1202,55 @@ public class SharingTree {
      * 3        G
      */
     public String toString() {
-        if (children.isEmpty()) return root.toString();
-        String s = root.toString() + SEPARATOR + START_CHILDREN_DELIMITER;
-        for (SharingTree dt : children) {
-            s = s + dt.toString() + DELIMITER;
+        StringBuilder s = new StringBuilder();
+        try {
+            writeTo(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // a StringBuilder does not throw
         }
-        return s.substring(0, s.length() - 2) + END_CHILDREN_DELIMITER;
+        return s.toString();
     }
 
+    /** Append to out the String toString() returns, in one pass over this
+     * SharingTree and without building intermediate Strings.
+     * Throw any IOException that out throws. */
+    public void writeTo(Appendable out) throws IOException {
+        // first is true iff the next node visited is the first child of its parent
+        boolean[] first = {true};
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.TO_STRING);
+        try {
+            depthFirst(call, t -> {
+                write(out, first[0] ? "" : DELIMITER);
+                write(out, t.root.toString());
+                first[0] = !t.children.isEmpty();
+                if (first[0]) {
+                    write(out, SEPARATOR);
+                    write(out, START_CHILDREN_DELIMITER);
+                }
+                return true;
+            }, t -> {
+                if (!t.children.isEmpty()) write(out, END_CHILDREN_DELIMITER);
+                first[0] = false;
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        end(call);
+    }
 
     /** Return a verbose (multi-line) string representing this SharingTree. */
     public String toStringVerbose() {
         return toStringVerbose(0);
     }
 
+    /** Append to out the String toStringVerbose() returns, in one pass over
+     * this SharingTree and without building intermediate Strings.
+     * Throw any IOException that out throws. */
+    public void writeVerboseTo(Appendable out) throws IOException {
+        writeVerboseTo(out, 0);
+    }
+
     /** Return a verbose (multi-line) string representing this SharingTree.
      * Each person in the tree is on its own line, with indentation representing
      * what each person is a child of.
@@ -466,18 +1278,59 @@ public class SharingTree {
      * Make sure to use VERBOSE_SPACE_INCREMENT for indentation.
      */
     private String toStringVerbose(int indent) {
-        String s = "";
-        for (int i = 0; i < indent; i++) {
-            s = s + VERBOSE_SPACE_INCREMENT;
+        StringBuilder s = new StringBuilder();
+        try {
+            writeVerboseTo(s, indent);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // a StringBuilder does not throw
         }
-        s = s + root.toString();
+        return s.toString();
+    }
+
+    /* Append to out the String toStringVerbose(indent) returns.
+     * Throw any IOException that out throws. */
+    private void writeVerboseTo(Appendable out, int indent) throws IOException {
+        SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.TO_STRING_VERBOSE);
+        try {
+            preorder(call, t -> {
+                if (t != this) write(out, "\n");
+                for (int i = 0; i < indent + t.depth - depth; i++) {
+                    write(out, VERBOSE_SPACE_INCREMENT);
+                }
+                write(out, t.root.toString());
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        end(call);
+    }
 
-        if (children.isEmpty()) return s;
+    /* Return the record of a call of operation op that begins now, in the
+     * metrics of the whole tree, or null if its calls are not recorded. */
+    private SharingTreeMetrics.Call begin(SharingTreeMetrics.Operation op) {
+        SharingTreeMetrics m= cascade.metrics;
+        return m == null ? null : m.start(op);
+    }
+
+    /* Record call (unless it is null) as ended. */
+    private static void end(SharingTreeMetrics.Call call) {
+        if (call != null) call.end();
+    }
+
+    /* Count n more nodes as visited by call (unless it is null). */
+    private static void visit(SharingTreeMetrics.Call call, long n) {
+        if (call != null) call.visit(n);
+    }
 
-        for (SharingTree dt : children) {
-            s = s + "\n" + dt.toStringVerbose(indent + 1);
+    /* Append s to out, wrapping an IOException in an UncheckedIOException so
+     * that it can get out of a Visitor. */
+    private static void write(Appendable out, String s) {
+        try {
+            out.append(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return s;
     }
 
     /** Return true iff this is equal to ob. Here's details:
@@ -495,23 +1348,38 @@ public class SharingTree {
     public boolean equals(Object ob) {
         //TODO 7
     	if (this == ob) { return true; }
+    	if (!(ob instanceof SharingTree)) { return false; }
+    	SharingTreeMetrics.Call call= begin(SharingTreeMetrics.Operation.EQUALS);
+    	if (structuralHash(call) != ((SharingTree) ob).structuralHash(call)) {
+    		end(call);
+    		return false;
+    	}
 
-    	if (ob instanceof SharingTree &&
-    		root == ((SharingTree) ob).getRoot() &&
-    		getChildrenCount() == ((SharingTree) ob).getChildrenCount()) {
-    		if(getChildrenCount() == 0) { return true; }
-
-    		for (SharingTree st : children) {
-    			for (SharingTree st2 : ((SharingTree) ob).getChildren()) {
-    				if (st.equals(st2)) {
-    					return true;
-    				}
-    			}
+    	// Compare pairs of nodes with an explicit stack. Since each Person is in
+    	// at most one node of a tree, the only candidate in the other tree for a
+    	// child st is the node of st's Person, which must be a child there too.
+    	ArrayDeque<SharingTree> mine = new ArrayDeque<>();
+    	ArrayDeque<SharingTree> theirs = new ArrayDeque<>();
+    	mine.push(this);
+    	theirs.push((SharingTree) ob);
+    	boolean equal = true;
+    	long pairs = 0;
+    	while (equal && !mine.isEmpty()) {
+    		SharingTree t = mine.pop();
+    		SharingTree t2 = theirs.pop();
+    		pairs++;
+    		equal = t.root == t2.root && t.children.size() == t2.children.size();
+    		for (SharingTree st : t.children) {
+    			if (!equal) break;
+    			SharingTree st2 = t2.cascade.index.get(st.root);
+    			equal = st2 != null && st2.parent == t2;
+    			mine.push(st);
+    			theirs.push(st2);
     		}
     	}
-
-        return false;
-
+    	visit(call, pairs);
+    	end(call);
+    	return equal;
     }
 
     /** return a hashCode for this object. For the equals function
@@ -520,8 +1388,742 @@ public class SharingTree {
      * The hashcode is the hashCode of the name of the root Person,
      * calculated once when this tree is created. Remember: each
      * Person can appear in at most one node of a tree.
+     * (It can't be the structural hash that equals uses, since a tree is in
+     * its parent's set of children while nodes are inserted below it.)
      */
     public @Override int hashCode() {
         return hashCode;
     }
+
+    /* Return the structural hash of this subtree, counting the nodes whose
+     * summaries are updated in call. */
+    private int structuralHash(SharingTreeMetrics.Call call) {
+        summarize(call);
+        return structuralHash;
+    }
+
+    /* Make the summary of this subtree valid, updating the summaries that
+     * are out of date (those reached from this node through the lists of
+     * changed children) children first. The nodes updated are counted in
+     * call (if not null). */
+    private void summarize(SharingTreeMetrics.Call call) {
+        if (summaryValid) return;
+        // In stale, every node comes after its parent
+        List<SharingTree> stale= new ArrayList<>();
+        stale.add(this);
+        for (int i= 0; i < stale.size(); i++) {
+            SharingTree t= stale.get(i);
+            if (t.changed == null) continue;
+            for (SharingTree c : t.changed) {
+                if (c.changedIn == t && !c.summaryValid) stale.add(c);
+            }
+        }
+        for (int i= stale.size() - 1; i >= 0; i--) {
+            stale.get(i).resummarize();
+        }
+        visit(call, stale.size());
+    }
+
+    /* Make the summary of this node valid (if it is not), given that the
+     * summaries of its children are. */
+    private void resummarize() {
+        if (summaryValid) return;
+        if (rescan) {
+            summarizeLeaf();
+            for (SharingTree st : children) {
+                st.pushedSize= 0;
+                push(st);
+            }
+            rescan= false;
+        } else {
+            for (SharingTree st : changed) {
+                if (st.changedIn == this) push(st);
+            }
+        }
+        if (changed != null) changed.clear();
+        summaryValid= true;
+    }
+
+    /* Add to the summary of this node the change of the summary of its
+     * child c since c's summary was last added to it. */
+    private void push(SharingTree c) {
+        subtreeSize+= c.subtreeSize - c.pushedSize;
+        structuralHash+= mix(c.structuralHash ^ 0x9e3779b9);
+        if (c.pushedSize != 0) structuralHash-= mix(c.pushedHash ^ 0x9e3779b9);
+        height= Math.max(height, c.height + 1);
+        c.pushedSize= c.subtreeSize;
+        c.pushedHash= c.structuralHash;
+        c.changedIn= null;
+    }
+
+    /* Return h with its bits mixed (the finalizer of MurmurHash3), so that
+     * sums of mixed values rarely collide. */
+    private static int mix(int h) {
+        h^= h >>> 16;
+        h*= 0x85ebca6b;
+        h^= h >>> 13;
+        h*= 0xc2b2ae35;
+        h^= h >>> 16;
+        return h;
+    }
+
+    /** An instance is one reshare of a post: child saw it from parent. */
+    public static class Reshare {
+        private final Person parent; // the person the post was seen from
+        private final Person child;  // the person who saw the post
+
+        /** Constructor: the reshare in which c saw the post from p. */
+        public Reshare(Person p, Person c) {
+            parent= p;
+            child= c;
+        }
+
+        /** Return the person the post was seen from. */
+        public Person getParent() {
+            return parent;
+        }
+
+        /** Return the person who saw the post. */
+        public Person getChild() {
+            return child;
+        }
+
+        /** Return a representation of this reshare: parent -> child. */
+        public String toString() {
+            return parent + " -> " + child;
+        }
+    }
+
+    /** An instance reports the reshares that insertAll could not insert. */
+    public static class InvalidReshareException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        /** The number of rejected reshares listed in the message. */
+        private static final int LISTED= 10;
+
+        private final transient SharingTree tree;         // tree the reshares went into
+        private final transient List<Reshare> rejected;   // rejected reshares, in order
+
+        /** Constructor: an instance for the reshares rejected (in order) by an
+         * insertAll into tree t. */
+        InvalidReshareException(SharingTree t, List<Reshare> rejected) {
+            super(rejected.size() + " reshares rejected, starting with "
+                    + rejected.subList(0, Math.min(LISTED, rejected.size())));
+            tree= t;
+            this.rejected= Collections.unmodifiableList(rejected);
+        }
+
+        /** Return the tree the valid reshares were inserted into. */
+        public SharingTree getTree() {
+            return tree;
+        }
+
+        /** Return the rejected reshares, in the order they were given. */
+        public List<Reshare> getRejected() {
+            return rejected;
+        }
+    }
+
+    /** An instance is a set of at most SMALL children, kept in an array in
+     * the order they were added. Nodes are compared with ==, which for the
+     * children of one node is the same as equals. */
+    private static class SmallSet extends AbstractSet<SharingTree> {
+        private SharingTree[] items= new SharingTree[2];  // elements items[0..size-1]
+        private int size;
+
+        public int size() {
+            return size;
+        }
+
+        public boolean contains(Object ob) {
+            return indexOf(ob) >= 0;
+        }
+
+        public boolean add(SharingTree t) {
+            if (indexOf(t) >= 0) return false;
+            if (size == items.length) items= Arrays.copyOf(items, 2 * size);
+            items[size]= t;
+            size++;
+            return true;
+        }
+
+        public boolean remove(Object ob) {
+            int i= indexOf(ob);
+            if (i < 0) return false;
+            removeAt(i);
+            return true;
+        }
+
+        /** Return the index of ob in items[0..size-1] (-1 if it is not there). */
+        private int indexOf(Object ob) {
+            for (int i= 0; i < size; i++) {
+                if (items[i] == ob) return i;
+            }
+            return -1;
+        }
+
+        /** Remove items[i], keeping the others in order. */
+        private void removeAt(int i) {
+            System.arraycopy(items, i + 1, items, i, size - i - 1);
+            size--;
+            items[size]= null;
+        }
+
+        public Iterator<SharingTree> iterator() {
+            return new Iterator<SharingTree>() {
+                private int next;           // the index of the next element
+                private boolean removable;  // the last element returned can be removed
+
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                public SharingTree next() {
+                    if (next >= size) throw new NoSuchElementException();
+                    removable= true;
+                    return items[next++];
+                }
+
+                public void remove() {
+                    if (!removable) throw new IllegalStateException();
+                    removable= false;
+                    next--;
+                    removeAt(next);
+                }
+            };
+        }
+    }
+
+    /** A listener is told of the inserts into, removals from and moves
+     * within a whole tree (see addChangeListener). */
+    interface ChangeListener {
+        /** Person p has been inserted into the whole tree whose root node is top. */
+        void inserted(SharingTree top, Person p);
+
+        /** Person p has been removed from the whole tree whose root node is top.
+         * The people of a removed subtree are told of one after the other,
+         * in preorder, so the root of the subtree first. */
+        void removed(SharingTree top, Person p);
+
+        /** Person p, with everybody below p, has been given a new parent in
+         * the whole tree whose root node is top. */
+        void moved(SharingTree top, Person p);
+    }
+
+    /** A Visitor is applied to the nodes of a SharingTree by a traversal. */
+    private interface Visitor {
+        /** Visit node t. Return false to skip the nodes below t (ignored by
+         * postorder traversals). */
+        boolean visit(SharingTree t);
+    }
+
+    /* Apply v to every node of this SharingTree, each node before the nodes
+     * below it. Siblings are visited in the iteration order of their set.
+     * The nodes visited are counted in call (if not null). */
+    private void preorder(SharingTreeMetrics.Call call, Visitor v) {
+        depthFirst(call, v, null);
+    }
+
+    /* Traverse this SharingTree depth first, applying pre (if not null) to
+     * each node before the nodes below it and post (if not null) after them.
+     * Uses an explicit stack instead of recursion, so it can handle trees of
+     * any depth. The nodes visited are counted in call (if not null). */
+    private void depthFirst(SharingTreeMetrics.Call call, Visitor pre, Visitor post) {
+        // pending.peek() iterates over the children of nodes.peek()
+        ArrayDeque<SharingTree> nodes= new ArrayDeque<>();
+        ArrayDeque<Iterator<SharingTree>> pending= new ArrayDeque<>();
+        SharingTree t= this;
+        long count= 0;
+        while (true) {
+            count++;
+            if (pre != null && !pre.visit(t) || t.children.isEmpty()) {
+                if (post != null) post.visit(t);
+            } else {
+                nodes.push(t);
+                pending.push(t.children.iterator());
+            }
+
+            // Find the next node to visit, finishing the nodes that have none left
+            while (!pending.isEmpty() && !pending.peek().hasNext()) {
+                pending.pop();
+                SharingTree done= nodes.pop();
+                if (post != null) post.visit(done);
+            }
+            if (pending.isEmpty()) {
+                visit(call, count);
+                return;
+            }
+            t= pending.peek().next();
+        }
+    }
+
+    /* Apply v to every node of this SharingTree in order of increasing depth,
+     * using a queue. The nodes visited are counted in call (if not null). */
+    private void levelOrder(SharingTreeMetrics.Call call, Visitor v) {
+        ArrayDeque<SharingTree> queue= new ArrayDeque<>();
+        queue.add(this);
+        long count= 0;
+        while (!queue.isEmpty()) {
+            SharingTree t= queue.remove();
+            count++;
+            if (v.visit(t)) queue.addAll(t.children);
+        }
+        visit(call, count);
+    }
+
+    /* Add the children of this node to the front of d (in reverse order of
+     * their set, so that they are popped in its order) if front, or else to
+     * the back of d. A small set of children is read without an iterator. */
+    private void addChildrenTo(ArrayDeque<SharingTree> d, boolean front) {
+        if (children.isEmpty()) return;
+        if (children instanceof SmallSet) {
+            SmallSet s= (SmallSet) children;
+            for (int i= 0; i < s.size; i++) {
+                if (front) d.push(s.items[s.size - 1 - i]);
+                else d.add(s.items[i]);
+            }
+        } else {
+            for (SharingTree c : children) {
+                if (front) d.push(c);
+                else d.add(c);
+            }
+        }
+    }
+
+    /** An iterator over the people of a subtree, in preorder or level order.
+     * The nodes still to be visited are in a deque used as a stack (for
+     * preorder) or a queue (for level order). */
+    private static class NodeIterator implements Iterator<Person> {
+        private final Cascade cascade;  // the cascade of the subtree
+        private final int expected;     // its modCount when this was made
+        private final boolean preorder;
+        private final ArrayDeque<SharingTree> pending= new ArrayDeque<>();
+
+        /** Constructor: an iterator over subtree t, in preorder if preorder
+         * and in level order if not. */
+        private NodeIterator(SharingTree t, boolean preorder) {
+            cascade= t.cascade;
+            expected= cascade.modCount;
+            this.preorder= preorder;
+            pending.add(t);
+        }
+
+        public boolean hasNext() {
+            return !pending.isEmpty();
+        }
+
+        public Person next() {
+            if (cascade.modCount != expected) throw new ConcurrentModificationException();
+            if (pending.isEmpty()) throw new NoSuchElementException();
+            SharingTree t= pending.remove();
+            t.addChildrenTo(pending, preorder);
+            return t.root;
+        }
+    }
+
+    /** A Spliterator over the people of some subtrees of a cascade, and of
+     * some nodes without the nodes below them, visited in preorder.
+     * Precondition: the summaries of the subtrees are valid (so their sizes
+     * are known) while the cascade does not change. */
+    private static class NodeSpliterator implements Spliterator<Person> {
+        private final Cascade cascade;  // the cascade of the nodes
+        private final int expected;     // its modCount when the first part was made
+
+        /** Nodes to be visited alone: their children are in pending or have
+         * been handed to another Spliterator. */
+        private final ArrayDeque<SharingTree> alone= new ArrayDeque<>();
+
+        /** The roots of the subtrees still to be visited, as a stack. */
+        private final ArrayDeque<SharingTree> pending= new ArrayDeque<>();
+
+        /** The number of people still to be visited. */
+        private long remaining;
+
+        /** Constructor: a Spliterator over subtree t. */
+        private NodeSpliterator(SharingTree t) {
+            this(t.cascade, t.cascade.modCount);
+            pending.push(t);
+            remaining= t.subtreeSize;
+        }
+
+        /** Constructor: an empty Spliterator over nodes of cascade c, whose
+         * modCount was expected when the first part was made. */
+        private NodeSpliterator(Cascade c, int expected) {
+            cascade= c;
+            this.expected= expected;
+        }
+
+        public boolean tryAdvance(Consumer<? super Person> action) {
+            if (cascade.modCount != expected) throw new ConcurrentModificationException();
+            SharingTree t;
+            if (!alone.isEmpty()) {
+                t= alone.pop();
+            } else if (!pending.isEmpty()) {
+                t= pending.pop();
+                t.addChildrenTo(pending, true);
+            } else {
+                return false;
+            }
+            remaining--;
+            action.accept(t.root);
+            return true;
+        }
+
+        public Spliterator<Person> trySplit() {
+            if (cascade.modCount != expected) throw new ConcurrentModificationException();
+            // One subtree can't be shared out: visit its root alone and
+            // share out its children instead
+            while (pending.size() == 1 && !pending.peek().children.isEmpty()) {
+                SharingTree t= pending.pop();
+                alone.push(t);
+                t.addChildrenTo(pending, true);
+            }
+            if (pending.size() < 2) return null;
+
+            // Hand over the subtrees pushed first (the ones nearest the top,
+            // so usually the largest) until about half of the people are handed over
+            NodeSpliterator part= new NodeSpliterator(cascade, expected);
+            while (pending.size() > 1 && part.remaining < remaining / 2) {
+                SharingTree t= pending.removeLast();
+                part.pending.push(t);
+                part.remaining+= t.subtreeSize;
+            }
+            remaining-= part.remaining;
+            return part;
+        }
+
+        public long estimateSize() {
+            return remaining;
+        }
+
+        public int characteristics() {
+            return SIZED | SUBSIZED | DISTINCT | NONNULL;
+        }
+    }
+
+    /** An instance computes a value R for the subtree rooted at a node t.
+     * The children of t are handed to forked tasks unless the subtree is
+     * small; small subtrees are done sequentially.
+     * Precondition: the summaries of the subtree are valid. */
+    private static abstract class SubtreeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        /** Subtrees with fewer nodes than this are done sequentially. */
+        private static final int CUTOFF= 1 << 13;
+
+        protected final SharingTree t;  // the root of the subtree
+
+        /** Constructor: a task for the subtree rooted at t. */
+        SubtreeTask(SharingTree t) {
+            this.t= t;
+        }
+
+        /** Return the value for the subtree rooted at t, without forking. */
+        abstract R sequential();
+
+        /** Return the value for the node t on its own. */
+        abstract R single();
+
+        /** Return a task for the subtree rooted at child c of t. */
+        abstract SubtreeTask<R> forChild(SharingTree c);
+
+        /** Return the value for the union of two disjoint parts of a subtree
+         * whose values are a and b. May change and return a. */
+        abstract R combine(R a, R b);
+
+        protected R compute() {
+            if (t.subtreeSize < CUTOFF || t.children.size() < 2) {
+                return sequential();
+            }
+            List<SubtreeTask<R>> forked= new ArrayList<>(t.children.size());
+            for (SharingTree c : t.children) {
+                SubtreeTask<R> task= forChild(c);
+                task.fork();
+                forked.add(task);
+            }
+            R r= single();
+            for (SubtreeTask<R> task : forked) {
+                r= combine(r, task.join());
+            }
+            return r;
+        }
+    }
+
+    /** An instance computes the widths of a subtree: element d of the result
+     * is the number of nodes d levels below the root of the subtree. */
+    private static class WidthsTask extends SubtreeTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        WidthsTask(SharingTree t) { super(t); }
+
+        int[] sequential() {
+            int[] widths= new int[t.height + 1];
+            t.preorder(null, n -> {
+                widths[n.depth - t.depth]++;
+                return true;
+            });
+            return widths;
+        }
+
+        int[] single() { return new int[] {1}; }
+
+        SubtreeTask<int[]> forChild(SharingTree c) { return new WidthsTask(c); }
+
+        /* The parts combined are the node t (or t with some of its children's
+         * subtrees) and the subtree of a child of t, so b is one level down. */
+        int[] combine(int[] a, int[] b) {
+            if (a.length < b.length + 1) a= Arrays.copyOf(a, b.length + 1);
+            for (int d= 0; d < b.length; d++) {
+                a[d + 1]+= b[d];
+            }
+            return a;
+        }
+    }
+
+    /** An instance holds the information shared by all the nodes of one
+     * whole SharingTree. */
+    private static class Cascade {
+        /** The node at the root of the whole tree. */
+        private final SharingTree top;
+
+        /** Maps each Person in the whole tree to the node that contains it.
+         * Keyed by identity, since Persons in a tree are compared with ==. */
+        private final Map<Person, SharingTree> index= new IdentityHashMap<>();
+
+        /** The number of changes (inserts, removals and moves) to the whole
+         * tree so far. */
+        private int modCount;
+
+        /** widths[d] is the number of nodes at depth d, for d < levels.
+         * The array grows as the tree gets deeper. */
+        private int[] widths= new int[8];
+
+        /** The number of depths that have a node, i.e. maximum depth + 1. */
+        private int levels;
+
+        /** The maximum of widths[0..levels-1]. */
+        private int maxWidth;
+
+        /** widthCount[w], for w > 0, is the number of depths d < levels with
+         * widths[d] == w, so that maxWidth can be kept when widths shrink.
+         * The array grows as maxWidth does. */
+        private int[] widthCount= new int[8];
+
+        /** The latest time of an insert (Long.MIN_VALUE if none). It does not
+         * go down when nodes are removed. */
+        private long lastTime= Long.MIN_VALUE;
+
+        /* The time index. If timesValid is false (nodes have been removed or
+         * moved), times and depthTimes are out of date and are rebuilt when
+         * next needed. The time of a node in the index is the time from which
+         * it is counted as of (see sizeAsOf): the latest insert time on the
+         * path to it from the root, which is its insert time unless it was
+         * moved under a node inserted later. */
+
+        /** The times of the nodes other than the root, sorted: times[0..size-2],
+         * for size the number of nodes. */
+        private long[] times= new long[8];
+
+        /** depthTimes[d], for 0 < d < levels, holds the times of the nodes at
+         * depth d, sorted: depthTimes[d][0..widths[d]-1]. depthTimes[0] is
+         * the time of the root. The array grows as widths does. */
+        private long[][] depthTimes= new long[8][];
+
+        /** times and depthTimes are up to date. */
+        private boolean timesValid= true;
+
+        /** The ancestor index of the whole tree (null if none was asked for). */
+        private AncestorIndex ancestors;
+
+        /** The metrics the operations on the whole tree are recorded in
+         * (null if they are not recorded). */
+        private SharingTreeMetrics metrics;
+
+        /** The listeners told of inserts into, removals from and moves within
+         * the whole tree (null if none). */
+        private List<ChangeListener> listeners;
+
+        /** Constructor: the Cascade of a new tree whose root node is top. */
+        private Cascade(SharingTree top) {
+            this.top= top;
+        }
+
+        /** Record that node t has been added to the whole tree.
+         * Precondition: t's depth has been set and its Person is not yet in
+         * the tree. */
+        private void add(SharingTree t) {
+            index.put(t.root, t);
+            widen(t.depth);
+            if (t.parent != null) lastTime= Math.max(lastTime, t.time);
+            if (!timesValid) return;
+
+            // Times of inserts don't decrease, so appending keeps the arrays sorted
+            if (t.parent == null) {
+                depthTimes[0]= new long[] {t.time};
+            } else {
+                int n= index.size() - 2;
+                if (n == times.length) times= Arrays.copyOf(times, 2 * n);
+                times[n]= t.time;
+                long[] dt= depthTimes[t.depth];
+                if (dt == null) dt= depthTimes[t.depth]= new long[1];
+                int w= widths[t.depth] - 1;
+                if (w == dt.length) dt= depthTimes[t.depth]= Arrays.copyOf(dt, 2 * w);
+                dt[w]= t.time;
+            }
+        }
+
+        /** Record that node t, which is not the top, has been removed from the
+         * whole tree. Precondition: t's depth is still its depth in the tree. */
+        private void remove(SharingTree t) {
+            index.remove(t.root);
+            narrow(t.depth);
+            timesValid= false;
+        }
+
+        /** Add 1 to the width at depth d, keeping levels, maxWidth and
+         * widthCount up to date. Precondition: d <= levels. */
+        private void widen(int d) {
+            if (d == widths.length) {
+                widths= Arrays.copyOf(widths, 2 * widths.length);
+                depthTimes= Arrays.copyOf(depthTimes, 2 * depthTimes.length);
+            }
+            levels= Math.max(levels, d + 1);
+            int w= widths[d] + 1;
+            widths[d]= w;
+            if (w > 1) widthCount[w - 1]--;
+            if (w == widthCount.length) widthCount= Arrays.copyOf(widthCount, 2 * w);
+            widthCount[w]++;
+            maxWidth= Math.max(maxWidth, w);
+        }
+
+        /** Subtract 1 from the width at depth d, keeping levels, maxWidth and
+         * widthCount up to date. Precondition: widths[d] > 0, and the depths
+         * with a node are still 0..levels-1 afterwards except perhaps at the
+         * bottom. */
+        private void narrow(int d) {
+            int w= widths[d];
+            widthCount[w]--;
+            // Depth d now has width w - 1, so the maximum can go down only by 1
+            if (w == maxWidth && widthCount[w] == 0) maxWidth= w - 1;
+            widths[d]= w - 1;
+            if (w > 1) widthCount[w - 1]++;
+            while (levels > 0 && widths[levels - 1] == 0) {
+                levels--;
+            }
+        }
+
+        /** Return the time to stamp an insert with now: the current time, or
+         * the time of the last insert if that is later. */
+        private long now() {
+            return Math.max(System.currentTimeMillis(), lastTime);
+        }
+
+        /** Make the time index up to date, rebuilding it if nodes have been
+         * removed or moved since it was last built. The nodes a rebuild
+         * visits are counted in call (if not null). */
+        private void validateTimes(SharingTreeMetrics.Call call) {
+            if (timesValid) return;
+            int n= index.size();
+            times= new long[Math.max(8, n)];
+            depthTimes= new long[widths.length][];
+            for (int d= 1; d < levels; d++) {
+                depthTimes[d]= new long[widths[d]];
+            }
+            depthTimes[0]= new long[] {top.time};
+            int[] filled= new int[levels];
+            int[] k= {0};
+            // from[d] is the time in the index of the node at depth d on the
+            // path to the node visited
+            long[] from= new long[levels];
+            from[0]= top.time;
+            top.preorder(call, t -> {
+                if (t == top) return true;
+                long f= Math.max(t.time, from[t.depth - 1]);
+                from[t.depth]= f;
+                times[k[0]]= f;
+                k[0]++;
+                depthTimes[t.depth][filled[t.depth]]= f;
+                filled[t.depth]++;
+                return true;
+            });
+            Arrays.sort(times, 0, n - 1);
+            for (int d= 1; d < levels; d++) {
+                Arrays.sort(depthTimes[d]);
+            }
+            timesValid= true;
+        }
+
+        /** Return the ancestor index, rebuilt first if the tree has changed
+         * since it was last built. The nodes a rebuild visits are counted in
+         * call (if not null). Precondition: ancestors is not null. */
+        private AncestorIndex ancestors(SharingTreeMetrics.Call call) {
+            if (ancestors.builtAt != modCount || ancestors.order == null) {
+                ancestors.build(top, index.size(), call);
+                ancestors.builtAt= modCount;
+            }
+            return ancestors;
+        }
+    }
+
+    /** An instance answers shared-ancestor queries on a whole tree in constant
+     * time. It lists the nodes in preorder and keeps a sparse table of range
+     * minimums of their depths: for two nodes u and v with u before v in the
+     * preorder, the shared ancestor is the parent of the shallowest node after
+     * u up to and including v (or u itself if it is an ancestor of v). */
+    private static class AncestorIndex {
+        /** The modCount of the cascade when this index was built. */
+        private int builtAt;
+
+        /** The nodes of the tree in preorder (null until built). */
+        private SharingTree[] order;
+
+        /** table[j][i] is the preorder position of the shallowest node among
+         * positions i..i + 2^j - 1. */
+        private int[][] table;
+
+        /** Rebuild this index for the tree of size n whose root node is top,
+         * counting the nodes visited in call (if not null). */
+        private void build(SharingTree top, int n, SharingTreeMetrics.Call call) {
+            order= new SharingTree[n];
+            int[] k= {0};
+            top.preorder(call, t -> {
+                t.preorder= k[0];
+                order[k[0]]= t;
+                k[0]++;
+                return true;
+            });
+
+            int levels= 32 - Integer.numberOfLeadingZeros(n);
+            table= new int[levels][];
+            table[0]= new int[n];
+            for (int i= 0; i < n; i++) {
+                table[0][i]= i;
+            }
+            for (int j= 1; j < levels; j++) {
+                int half= 1 << (j - 1);
+                int[] prev= table[j - 1];
+                int[] row= new int[n - (1 << j) + 1];
+                for (int i= 0; i < row.length; i++) {
+                    row[i]= shallower(prev[i], prev[i + half]);
+                }
+                table[j]= row;
+            }
+        }
+
+        /** Return whichever of preorder positions a and b holds the
+         * shallower node. */
+        private int shallower(int a, int b) {
+            return order[a].depth <= order[b].depth ? a : b;
+        }
+
+        /** Return the deepest node that is an ancestor of both u and v. */
+        private SharingTree sharedAncestor(SharingTree u, SharingTree v) {
+            if (u == v) return u;
+            int lo= Math.min(u.preorder, v.preorder) + 1;
+            int hi= Math.max(u.preorder, v.preorder);
+            int j= 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+            int m= shallower(table[j][lo], table[j][hi - (1 << j) + 1]);
+            return order[m].parent;
+        }
+    }
 }
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Timing runs of SharingTree operations on large trees.
+ * Run with: java SharingTreeBenchmark [n] [footprint]
+ * Each operation is run a few times to warm up, then timed. Times are in
+ * milliseconds per call. With "footprint", only the heap used by trees of
+ * n people is reported. */
+public class SharingTreeBenchmark {
+
+    /** The number of untimed calls before the timed ones. */
+    private static final int WARMUP= 3;
+
+    /** The number of timed calls. */
+    private static final int RUNS= 5;
+
+    /** Run the benchmarks on trees of args[0] people (default 200000), or
+     * only the footprint report if args[1] is "footprint". */
+    public static void main(String[] args) throws IOException {
+        int n= args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Network net= new Network();
+        Person[] people= CascadeShape.people(net, n);
+        if (args.length > 1 && args[1].equals("footprint")) {
+            System.out.println("Heap used by trees of " + n + " people (not counting the people)");
+            footprint(people, CascadeShape.RANDOM);
+            footprint(people, CascadeShape.WIDE);
+            footprint(people, CascadeShape.CHAIN);
+            return;
+        }
+
+        System.out.println("Chain of " + n + " people");
+        traversals(CascadeShape.CHAIN.build(people, 0));
+        System.out.println("Wide tree of " + n + " people (fan-out 64)");
+        traversals(CascadeShape.WIDE.build(people, 0));
+        System.out.println("Random tree of " + n + " people");
+        SharingTree random= CascadeShape.RANDOM.build(people, 2110);
+        traversals(random);
+        System.out.println("Random tree of " + n + " people, sequential vs parallel on "
+                + "the subtree of " + people[1].getName() + " ("
+                + Runtime.getRuntime().availableProcessors() + " processors)");
+        parallel(random.getTree(people[1]));
+        System.out.println("Concurrent inserts of " + n + " people");
+        concurrent(people);
+        System.out.println("Startup: rebuilding a random tree of " + n + " people");
+        startup(random, people);
+    }
+
+    /** Print the heap used by a tree of the given shape of people. */
+    private static void footprint(Person[] people, CascadeShape shape) {
+        long before= usedHeap();
+        SharingTree st= shape.build(people, 2110);
+        long bytes= usedHeap() - before;
+        System.out.printf("  %-28s %10.1f MB %8.1f bytes/person%n", shape,
+                bytes / 1e6, (double) bytes / st.size());
+    }
+
+    /** Return the number of bytes of the heap in use, after garbage collection. */
+    private static long usedHeap() {
+        Runtime rt= Runtime.getRuntime();
+        for (int k= 0; k < 3; k++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Time the ways of getting back tree st of people at startup: inserting
+     * its reshares one by one or loading a snapshot of it. */
+    private static void startup(SharingTree st, Person[] people) throws IOException {
+        Map<String, Person> byName= new HashMap<>();
+        for (Person p : people) {
+            byName.put(p.getName(), p);
+        }
+        Person[] parents= new Person[people.length];
+        for (int k= 1; k < people.length; k++) {
+            parents[k]= st.getParent(people[k]);
+        }
+
+        Path f= Files.createTempFile("sharingtree", ".bin");
+        try {
+            time("insert each reshare", () -> {
+                SharingTree t= new SharingTree(people[0]);
+                for (int k= 1; k < people.length; k++) {
+                    t.insert(parents[k], people[k]);
+                }
+            });
+            time("write snapshot", () -> {
+                try {
+                    SharingTreeSnapshot.write(st, f);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.printf("  snapshot size %d bytes%n", Files.size(f));
+            time("read snapshot", () -> {
+                try {
+                    SharingTreeSnapshot.read(f, byName::get);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } finally {
+            Files.delete(f);
+        }
+    }
+
+    /** Print the insert throughput of a ConcurrentSharingTree for 1, 2, 4, ...
+     * threads, up to twice the number of processors. Each thread inserts its
+     * share of people below 64 people inserted beforehand. */
+    private static void concurrent(Person[] people) {
+        int hubs= 64;
+        int maxThreads= 2 * Runtime.getRuntime().availableProcessors();
+        for (int threads= 1; threads <= maxThreads; threads= 2 * threads) {
+            int nThreads= threads;
+            time(threads + " thread(s)", () -> {
+                ConcurrentSharingTree t= new ConcurrentSharingTree(people[0]);
+                for (int k= 1; k <= hubs; k++) {
+                    t.insert(people[0], people[k]);
+                }
+                Thread[] ts= new Thread[nThreads];
+                for (int i= 0; i < nThreads; i++) {
+                    int id= i;
+                    ts[i]= new Thread(() -> {
+                        for (int k= hubs + 1 + id; k < people.length; k+= nThreads) {
+                            t.insert(people[1 + k % hubs], people[k]);
+                        }
+                    });
+                    ts[i].start();
+                }
+                for (Thread th : ts) {
+                    try {
+                        th.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    /** Time size and maxDepth of sub, which are kept in the nodes, and the
+     * sequential and fork/join versions of maxWidth. */
+    private static void parallel(SharingTree sub) {
+        time("size", () -> sub.size());
+        time("maxDepth", () -> sub.maxDepth());
+        time("maxWidth", () -> sub.maxWidth());
+        time("parallelMaxWidth", () -> sub.parallelMaxWidth());
+    }
+
+    /** Time the traversals of tree st, both on st and on the subtree below
+     * the root's first child (for which no whole-tree summary is kept). */
+    private static void traversals(SharingTree st) {
+        SharingTree sub= st.getChildren().iterator().next();
+        SharingTree copy= new SharingTree(st);
+        time("copy", () -> new SharingTree(st));
+        time("size", () -> sub.size());
+        time("maxDepth", () -> sub.maxDepth());
+        time("maxWidth", () -> sub.maxWidth());
+        time("maxWidthImplementationThree", () -> SharingTree.maxWidthImplementationThree(sub));
+        time("equals", () -> st.equals(copy));
+    }
+
+    /** Print the average time of a call of r, after some warm-up calls. */
+    static void time(String name, Runnable r) {
+        for (int k= 0; k < WARMUP; k++) {
+            r.run();
+        }
+        long start= System.nanoTime();
+        for (int k= 0; k < RUNS; k++) {
+            r.run();
+        }
+        double ms= (System.nanoTime() - start) / 1e6 / RUNS;
+        System.out.printf("  %-28s %10.3f ms%n", name, ms);
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+/** An instance records, for each public operation on the SharingTrees it
+ * is attached to (see SharingTree.setMetrics), the number of calls, the
+ * number of tree nodes they visited and a histogram of their latencies.
+ * Each call is recorded once, under its own operation, with all the nodes
+ * its walks over subtrees and up the parent links visited, including those
+ * of the work it shares with other operations (e.g. contains on a subtree
+ * walks up from the person as getTree does, but is recorded as CONTAINS).
+ * A call answered in constant time from the indexes of the whole tree
+ * (e.g. size or contains on the root) visits 0 nodes. A call that throws an
+ * exception is not recorded.
+ * <p>
+ * Latencies are in nanoseconds. Bucket b of a histogram counts the
+ * calls that took from 2^(b-1) up to (but not including) 2^b
+ * nanoseconds; bucket 0 counts those that took 0 nanoseconds.
+ * <p>
+ * Unlike SharingTree, an instance is safe for use by several threads at
+ * once, so calls on different trees may record in the same one. */
+public class SharingTreeMetrics {
+
+    /** The operations that are recorded. */
+    public enum Operation {
+        INSERT, INSERT_ALL, REMOVE_SUBTREE, REPARENT, SIZE, DEPTH, GET_TREE,
+        CONTAINS, MAX_DEPTH, WIDTH_AT_DEPTH, MAX_WIDTH, PARALLEL_MAX_WIDTH,
+        GET_INSERT_TIME, SIZE_AS_OF, MAX_DEPTH_AS_OF, WIDTH_AT_DEPTH_AS_OF,
+        GET_SHARING_ROUTE, GET_SHARING_ROUTES, GET_PARENT, GET_SHARED_ANCESTOR,
+        FREEZE, TO_STRING, TO_STRING_VERBOSE, EQUALS
+    }
+
+    /** The number of buckets in a latency histogram. */
+    public static final int BUCKETS= 64;
+
+    private static final int OPS= Operation.values().length;
+
+    /* For each operation op, element op.ordinal() of these arrays is: */
+    private final long[] calls= new long[OPS];       // the number of calls
+    private final long[] visited= new long[OPS];     // the nodes they visited
+    private final long[] totalNanos= new long[OPS];  // their total latency
+    private final long[] maxNanos= new long[OPS];    // their largest latency
+    private final long[][] histograms= new long[OPS][BUCKETS];
+
+    /** Return a new record of a call of operation op that begins now. */
+    Call start(Operation op) {
+        return new Call(this, op);
+    }
+
+    /** Record that a call of operation op took nanos nanoseconds and
+     * visited n nodes. */
+    synchronized void record(Operation op, long nanos, long n) {
+        nanos= Math.max(0, nanos);
+        int i= op.ordinal();
+        calls[i]++;
+        visited[i]= visited[i] + n;
+        totalNanos[i]= totalNanos[i] + nanos;
+        maxNanos[i]= Math.max(maxNanos[i], nanos);
+        histograms[i][64 - Long.numberOfLeadingZeros(nanos)]++;
+    }
+
+    /** Forget everything recorded so far. */
+    public synchronized void reset() {
+        Arrays.fill(calls, 0);
+        Arrays.fill(visited, 0);
+        Arrays.fill(totalNanos, 0);
+        Arrays.fill(maxNanos, 0);
+        for (long[] h : histograms) {
+            Arrays.fill(h, 0);
+        }
+    }
+
+    /** Return a copy of what has been recorded so far. */
+    public synchronized Snapshot snapshot() {
+        long[][] hs= new long[OPS][];
+        for (int i= 0; i < OPS; i++) {
+            hs[i]= histograms[i].clone();
+        }
+        return new Snapshot(calls.clone(), visited.clone(), totalNanos.clone(),
+                maxNanos.clone(), hs);
+    }
+
+    /** An instance is the record of one call while it runs: its operation,
+     * the time it began and the number of nodes it has visited so far. Only
+     * the thread making the call uses it. */
+    static class Call {
+        private final SharingTreeMetrics metrics;
+        private final Operation op;
+        private final long start= System.nanoTime();
+        private long visited;
+
+        /** Constructor: a call of operation op, recorded in metrics when it ends. */
+        private Call(SharingTreeMetrics metrics, Operation op) {
+            this.metrics= metrics;
+            this.op= op;
+        }
+
+        /** Count n more nodes as visited by this call. */
+        void visit(long n) {
+            visited= visited + n;
+        }
+
+        /** Record this call, which has just ended. */
+        void end() {
+            metrics.record(op, System.nanoTime() - start, visited);
+        }
+    }
+
+    /** An instance is an immutable copy of the metrics at some time. */
+    public static class Snapshot {
+        private final long[] calls;
+        private final long[] visited;
+        private final long[] totalNanos;
+        private final long[] maxNanos;
+        private final long[][] histograms;
+
+        /** Constructor: a snapshot of the given arrays (see the fields of
+         * SharingTreeMetrics). This object takes them over. */
+        private Snapshot(long[] calls, long[] visited, long[] totalNanos,
+                long[] maxNanos, long[][] histograms) {
+            this.calls= calls;
+            this.visited= visited;
+            this.totalNanos= totalNanos;
+            this.maxNanos= maxNanos;
+            this.histograms= histograms;
+        }
+
+        /** Return the number of calls recorded for op. */
+        public long calls(Operation op) {
+            return calls[op.ordinal()];
+        }
+
+        /** Return the number of tree nodes visited by the calls of op. */
+        public long nodesVisited(Operation op) {
+            return visited[op.ordinal()];
+        }
+
+        /** Return the total latency of the calls of op, in nanoseconds. */
+        public long totalNanos(Operation op) {
+            return totalNanos[op.ordinal()];
+        }
+
+        /** Return the largest latency of a call of op, in nanoseconds. */
+        public long maxNanos(Operation op) {
+            return maxNanos[op.ordinal()];
+        }
+
+        /** Return a copy of the latency histogram of op (see SharingTreeMetrics). */
+        public long[] histogram(Operation op) {
+            return histograms[op.ordinal()].clone();
+        }
+
+        /** Return an upper bound on the latency, in nanoseconds, of fraction q
+         * of the calls of op: the upper end of the first histogram bucket at
+         * which that fraction is reached (0 if none was recorded).
+         * Throw an IllegalArgumentException if q is not in 0..1. */
+        public long percentileNanos(Operation op, double q) throws IllegalArgumentException {
+            if (!(q >= 0 && q <= 1))
+                throw new IllegalArgumentException("Fraction not in 0..1: " + q);
+            long[] h= histograms[op.ordinal()];
+            long wanted= (long) Math.ceil(q * calls[op.ordinal()]);
+            long seen= 0;
+            for (int b= 0; b < BUCKETS; b++) {
+                seen= seen + h[b];
+                if (seen >= wanted && seen > 0) {
+                    return b == 0 ? 0 : Math.min(maxNanos(op), (1L << b) - 1);
+                }
+            }
+            return 0;
+        }
+
+        /** Return a table with a line for each operation that was recorded:
+         * its calls, nodes visited, mean, median, 99th percentile and
+         * maximum latency (in microseconds). */
+        public String toString() {
+            StringBuilder s= new StringBuilder(String.format("%-20s %10s %12s %10s %10s %10s %10s",
+                    "operation", "calls", "visited", "mean us", "p50 us", "p99 us", "max us"));
+            for (Operation op : Operation.values()) {
+                long n= calls(op);
+                if (n == 0) continue;
+                s.append(String.format("%n%-20s %10d %12d %10.1f %10.1f %10.1f %10.1f",
+                        op, n, nodesVisited(op), totalNanos(op) / 1e3 / n,
+                        percentileNanos(op, 0.5) / 1e3, percentileNanos(op, 0.99) / 1e3,
+                        maxNanos(op) / 1e3));
+            }
+            return s.toString();
+        }
+    }
+}
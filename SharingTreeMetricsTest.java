@@ -0,0 +1,173 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SharingTreeMetricsTest {
+
+    /** Return a chain of the people in ps, ps[0] at the root. */
+    private static SharingTree chain(Person[] ps) {
+        SharingTree st= new SharingTree(ps[0]);
+        for (int k= 1; k < ps.length; k++) {
+            st.insert(ps[k - 1], ps[k]);
+        }
+        return st;
+    }
+
+    @Test
+    public void testCounts() {
+        Network net= new Network();
+        Person[] ps= new Person[10];
+        for (int k= 0; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+        }
+        SharingTree st= chain(ps);
+        assertNull(st.getMetrics());
+
+        SharingTreeMetrics m= new SharingTreeMetrics();
+        SharingTree sub= st.getTree(ps[2]);
+        sub.setMetrics(m);  // records the operations on the whole tree
+        assertSame(m, st.getMetrics());
+
+        // Answered from the indexes of the whole tree: recorded, no nodes visited
+        assertTrue(st.contains(ps[9]));
+        assertEquals(9, st.depth(ps[9]));
+        try {
+            st.insert(ps[0], ps[3]);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        st.insert(ps[9], new Person("q", net, 0));
+        SharingTreeMetrics.Snapshot s= m.snapshot();
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.DEPTH));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.INSERT));
+        assertEquals(0, s.nodesVisited(SharingTreeMetrics.Operation.INSERT));
+        assertEquals(0, s.calls(SharingTreeMetrics.Operation.GET_TREE));
+
+        // On the subtree at depth 2, each call walks up from its person to depth 2
+        assertEquals(7, sub.depth(ps[9]));
+        assertTrue(sub.contains(ps[5]));
+        assertEquals(ps[3], sub.getParent(ps[4]));
+        assertEquals(10, st.getSharingRoute(ps[9]).size());
+
+        s= m.snapshot();
+        assertEquals(2, s.calls(SharingTreeMetrics.Operation.DEPTH));
+        assertEquals(7, s.nodesVisited(SharingTreeMetrics.Operation.DEPTH));
+        assertEquals(2, s.calls(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(3, s.nodesVisited(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.GET_PARENT));
+        assertEquals(2, s.nodesVisited(SharingTreeMetrics.Operation.GET_PARENT));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.GET_SHARING_ROUTE));
+        assertEquals(9, s.nodesVisited(SharingTreeMetrics.Operation.GET_SHARING_ROUTE));
+        assertEquals(0, s.calls(SharingTreeMetrics.Operation.GET_TREE));
+
+        long[] h= s.histogram(SharingTreeMetrics.Operation.CONTAINS);
+        long sum= 0;
+        for (long c : h) sum= sum + c;
+        assertEquals(2, sum);
+        assertTrue(s.percentileNanos(SharingTreeMetrics.Operation.CONTAINS, 0.5)
+                <= s.maxNanos(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(0, s.percentileNanos(SharingTreeMetrics.Operation.EQUALS, 0.99));
+        assertTrue(s.toString().contains("CONTAINS"));
+        assertFalse(s.toString().contains("EQUALS"));
+
+        // A snapshot does not change; reset and detaching stop the counts
+        m.reset();
+        assertEquals(2, s.calls(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(0, m.snapshot().calls(SharingTreeMetrics.Operation.CONTAINS));
+        st.setMetrics(null);
+        sub.contains(ps[5]);
+        assertEquals(0, m.snapshot().calls(SharingTreeMetrics.Operation.CONTAINS));
+    }
+
+    /** contains and getTree do the same search on a subtree, but each call
+     * is recorded under its own operation, with the nodes it visited. */
+    @Test
+    public void testContainsApartFromGetTree() {
+        Network net= new Network();
+        Person[] ps= new Person[100];
+        for (int k= 0; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+        }
+        SharingTree st= chain(ps);
+        SharingTree sub= st.getTree(ps[10]);
+        SharingTreeMetrics m= new SharingTreeMetrics();
+        st.setMetrics(m);
+
+        for (int k= 0; k < 5; k++) {
+            assertTrue(sub.contains(ps[99]));
+        }
+        assertFalse(sub.contains(ps[5]));
+        assertSame(sub, sub.getTree(ps[10]));
+        assertNotNull(sub.getTree(ps[30]));
+
+        SharingTreeMetrics.Snapshot s= m.snapshot();
+        assertEquals(6, s.calls(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(5 * 89, s.nodesVisited(SharingTreeMetrics.Operation.CONTAINS));
+        assertEquals(2, s.calls(SharingTreeMetrics.Operation.GET_TREE));
+        assertEquals(20, s.nodesVisited(SharingTreeMetrics.Operation.GET_TREE));
+    }
+
+    @Test
+    public void testTraversals() {
+        Network net= new Network();
+        Person[] ps= new Person[100];
+        for (int k= 0; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+        }
+        SharingTree st= chain(ps);
+        SharingTree copy= new SharingTree(st);
+        SharingTree sub= st.getTree(ps[50]);
+        assertEquals(50, sub.size());
+        assertEquals(st, copy);  // brings the summaries up to date
+        SharingTreeMetrics m= new SharingTreeMetrics();
+        st.setMetrics(m);
+
+        assertEquals(1, sub.maxWidth());
+        st.toString();
+        assertEquals(st, copy);
+
+        // maxWidth of the subtree needs its maxDepth, which is part of the call
+        SharingTreeMetrics.Snapshot s= m.snapshot();
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.MAX_WIDTH));
+        assertEquals(50, s.nodesVisited(SharingTreeMetrics.Operation.MAX_WIDTH));
+        assertEquals(0, s.calls(SharingTreeMetrics.Operation.MAX_DEPTH));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.TO_STRING));
+        assertEquals(100, s.nodesVisited(SharingTreeMetrics.Operation.TO_STRING));
+        assertEquals(1, s.calls(SharingTreeMetrics.Operation.EQUALS));
+        assertEquals(100, s.nodesVisited(SharingTreeMetrics.Operation.EQUALS));
+        try {
+            s.percentileNanos(SharingTreeMetrics.Operation.EQUALS, 1.5);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /** Trees used by several threads at once can record in one instance. */
+    @Test
+    public void testThreads() throws Exception {
+        Network net= new Network();
+        SharingTreeMetrics m= new SharingTreeMetrics();
+        Thread[] threads= new Thread[4];
+        for (int i= 0; i < threads.length; i++) {
+            Person[] ps= new Person[20];
+            for (int k= 0; k < ps.length; k++) {
+                ps[k]= new Person("t" + i + "p" + k, net, 0);
+            }
+            SharingTree st= chain(ps);
+            st.setMetrics(m);
+            threads[i]= new Thread(() -> {
+                for (int j= 0; j < 1000; j++) {
+                    st.getSharingRoute(ps[19]);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread th : threads) {
+            th.join();
+        }
+        SharingTreeMetrics.Snapshot s= m.snapshot();
+        assertEquals(4000, s.calls(SharingTreeMetrics.Operation.GET_SHARING_ROUTE));
+        assertEquals(4000 * 19, s.nodesVisited(SharingTreeMetrics.Operation.GET_SHARING_ROUTE));
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Function;
+
+/** Saving a SharingTree to a binary snapshot file and loading it again.
+ * <p>
+ * The people of the tree are numbered 0..n-1 in preorder (the root is 0).
+ * A snapshot is, with all ints and longs big-endian:
+ * <br> - the int MAGIC, then n, then the length in bytes of the names,
+ * <br> - n+1 ints: the names of person i are bytes offsets[i]..offsets[i+1]-1
+ *        of the names,
+ * <br> - n ints: the number of the parent of each person (-1 for the root),
+ * <br> - n ints: the depth of each person (0 for the root),
+ * <br> - n longs: the insert time of each person (see getInsertTime),
+ * <br> - the names of all the people, in UTF-8, one after the other.
+ * <p>
+ * A snapshot that starts with MAGIC1 instead has no insert times; its
+ * people are loaded as if they had all been inserted at the time of loading.
+ * <p>
+ * A snapshot is loaded through a memory-mapped FileChannel: the arrays
+ * are copied out in bulk, and the only per-person work is decoding the name
+ * and linking the new node to its parent. */
+public class SharingTreeSnapshot {
+
+    /** The first int of every snapshot ("STS2"). */
+    public static final int MAGIC= 0x53545332;
+
+    /** The first int of a snapshot without insert times ("STS1"). */
+    public static final int MAGIC1= 0x53545331;
+
+    /** The number of bytes before the arrays: MAGIC, n and the names' length. */
+    private static final int HEADER= 3 * Integer.BYTES;
+
+    /** Constructor: none; this class has only static methods. */
+    private SharingTreeSnapshot() {
+    }
+
+    /** Write a snapshot of tree st to file f, replacing f if it exists.
+     * Throw an IOException if the file can't be written. */
+    public static void write(SharingTree st, Path f) throws IOException {
+        FrozenSharingTree t= st.freeze();
+        int n= t.size();
+        byte[][] names= new byte[n][];
+        long nameBytes= 0;
+        for (int i= 0; i < n; i++) {
+            names[i]= t.person(i).getName().getBytes(StandardCharsets.UTF_8);
+            nameBytes= nameBytes + names[i].length;
+        }
+        long length= HEADER + (3L * n + 1) * Integer.BYTES + (long) n * Long.BYTES + nameBytes;
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Tree too large for a snapshot: " + length + " bytes");
+
+        try (FileChannel ch= FileChannel.open(f, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf= ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buf.putInt(MAGIC).putInt(n).putInt((int) nameBytes);
+            int offset= 0;
+            for (int i= 0; i < n; i++) {
+                buf.putInt(offset);
+                offset= offset + names[i].length;
+            }
+            buf.putInt(offset);
+            for (int i= 0; i < n; i++) {
+                buf.putInt(t.parent(i));
+            }
+            for (int i= 0; i < n; i++) {
+                buf.putInt(t.depth(i));
+            }
+            for (int i= 0; i < n; i++) {
+                buf.putLong(t.time(i));
+            }
+            for (byte[] name : names) {
+                buf.put(name);
+            }
+            buf.force();
+        }
+    }
+
+    /** Load the tree in snapshot file f. people maps the name of each person
+     * in the snapshot to that Person (Persons are compared with ==, so the
+     * loaded tree is equal to the saved one only if people returns the same
+     * Persons that were saved).
+     * Throw an IOException if f can't be read or is not a valid snapshot, for
+     * example if people returns null or the same Person for two names. */
+    public static SharingTree read(Path f, Function<String, Person> people)
+            throws IOException {
+        try (FileChannel ch= FileChannel.open(f, StandardOpenOption.READ)) {
+            if (ch.size() < HEADER) throw new IOException("Not a snapshot: " + f);
+            // write makes no snapshot this large, and map can't map it
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException("Not a snapshot, too large: " + f);
+            MappedByteBuffer buf= ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            int magic= buf.getInt();
+            if (magic != MAGIC && magic != MAGIC1) throw new IOException("Not a snapshot: " + f);
+            boolean timed= magic == MAGIC;
+            int n= buf.getInt();
+            int nameBytes= buf.getInt();
+            long timeBytes= timed ? (long) n * Long.BYTES : 0;
+            if (n < 1 || nameBytes < 0
+                    || ch.size() != HEADER + (3L * n + 1) * Integer.BYTES + timeBytes + nameBytes)
+                throw new IOException("Corrupt snapshot: " + f);
+
+            IntBuffer ints= buf.asIntBuffer();
+            int[] offsets= new int[n + 1];
+            int[] parents= new int[n];
+            int[] depths= new int[n];
+            ints.get(offsets).get(parents).get(depths);
+            if (offsets[0] != 0) throw new IOException("Corrupt snapshot: " + f);
+            buf.position(HEADER + (3 * n + 1) * Integer.BYTES);
+            long[] times= null;
+            if (timed) {
+                times= new long[n];
+                LongBuffer longs= buf.slice().asLongBuffer();
+                longs.get(times);
+                buf.position(buf.position() + (int) timeBytes);
+            }
+            ByteBuffer names= buf.slice();
+
+            Person[] ps= new Person[n];
+            byte[] name= new byte[0];
+            for (int i= 0; i < n; i++) {
+                int len= offsets[i + 1] - offsets[i];
+                if (len < 0 || offsets[i + 1] > nameBytes)
+                    throw new IOException("Corrupt snapshot: " + f);
+                if (name.length < len) name= new byte[Math.max(len, 2 * name.length)];
+                names.get(name, 0, len);
+                ps[i]= people.apply(new String(name, 0, len, StandardCharsets.UTF_8));
+
+                boolean rootOk= i == 0 && parents[i] == -1 && depths[i] == 0;
+                boolean childOk= i > 0 && parents[i] >= 0 && parents[i] < i
+                        && depths[i] == depths[parents[i]] + 1;
+                if (!rootOk && !childOk) throw new IOException("Corrupt snapshot: " + f);
+            }
+
+            try {
+                return SharingTree.assemble(ps, parents, times);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid snapshot " + f + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
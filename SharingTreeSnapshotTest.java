@@ -0,0 +1,126 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SharingTreeSnapshotTest {
+
+    private static Network n;
+    private static Person[] people;
+    private static Map<String, Person> byName;
+
+    @BeforeClass
+    public static void setup(){
+        n= new Network();
+        people= new Person[1000];
+        byName= new HashMap<>();
+        for (int k= 0; k < people.length; k++) {
+            // Names outside ASCII check the UTF-8 encoding
+            people[k]= new Person("P\u00e9" + k, n, 0);
+            byName.put(people[k].getName(), people[k]);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random rnd= new Random(2110);
+        SharingTree st= new SharingTree(people[0]);
+        for (int k= 1; k < people.length; k++) {
+            st.insert(people[rnd.nextInt(k)], people[k], 10 * k);
+        }
+        // A person moved under one inserted later keeps its insert time
+        st.reparent(people[5], people[900]);
+        Path f= Files.createTempFile("sharingtree", ".bin");
+        try {
+            SharingTreeSnapshot.write(st, f);
+            SharingTree loaded= SharingTreeSnapshot.read(f, byName::get);
+            assertEquals(st, loaded);
+            assertEquals(st.size(), loaded.size());
+            assertEquals(st.maxWidth(), loaded.maxWidth());
+            assertEquals(st.toString(), loaded.toString());
+            for (Person p : people) {
+                assertEquals(st.getInsertTime(p), loaded.getInsertTime(p));
+            }
+            for (long time= 0; time <= 10 * people.length; time+= 250) {
+                assertEquals(st.sizeAsOf(time), loaded.sizeAsOf(time));
+                assertEquals(st.maxDepthAsOf(time), loaded.maxDepthAsOf(time));
+            }
+            // The loaded tree can keep growing, but not before its last insert
+            try {
+                loaded.insert(people[0], new Person("early", n, 0), 10 * people.length - 20);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+            }
+            loaded.insert(people[0], new Person("new", n, 0));
+            assertFalse(st.equals(loaded));
+        } finally {
+            Files.delete(f);
+        }
+    }
+
+    @Test
+    public void testSingleNode() throws IOException {
+        SharingTree st= new SharingTree(people[0]);
+        Path f= Files.createTempFile("sharingtree", ".bin");
+        try {
+            SharingTreeSnapshot.write(st, f);
+            assertEquals(st, SharingTreeSnapshot.read(f, byName::get));
+
+            // A snapshot without insert times
+            byte[] name= people[0].getName().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer old= ByteBuffer.allocate(7 * Integer.BYTES + name.length);
+            old.putInt(SharingTreeSnapshot.MAGIC1).putInt(1).putInt(name.length);
+            old.putInt(0).putInt(name.length).putInt(-1).putInt(0).put(name);
+            Files.write(f, old.array());
+            assertEquals(st, SharingTreeSnapshot.read(f, byName::get));
+        } finally {
+            Files.delete(f);
+        }
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1]);
+        Path f= Files.createTempFile("sharingtree", ".bin");
+        try {
+            SharingTreeSnapshot.write(st, f);
+            // Two names for the same Person
+            try {
+                SharingTreeSnapshot.read(f, name -> people[0]);
+                fail("expected IOException");
+            } catch (IOException e) {
+            }
+            Files.write(f, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+            try {
+                SharingTreeSnapshot.read(f, byName::get);
+                fail("expected IOException");
+            } catch (IOException e) {
+            }
+
+            // A file too large to map: a (sparse) file of over 2 GB
+            try (FileChannel ch= FileChannel.open(f, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.allocate(1), Integer.MAX_VALUE);
+            }
+            assertEquals(Integer.MAX_VALUE + 1L, Files.size(f));
+            try {
+                SharingTreeSnapshot.read(f, byName::get);
+                fail("expected IOException");
+            } catch (IOException e) {
+            }
+        } finally {
+            Files.delete(f);
+        }
+    }
+}
@@ -1,9 +1,21 @@
 import static org.junit.Assert.*;
 import static common.JUnitUtil.*;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.function.Function;
 
 import org.junit.BeforeClass;
@@ -49,6 +61,539 @@ public class SharingTreeTest {
         
     }
     
+    @Test
+    public void testInsertRejects() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1]);
+        SharingTree b= st.insert(people[0], people[2]);
+        assertThrows(() -> st.insert(people[0], people[1]));
+        assertThrows(() -> st.insert(people[7], people[8]));
+        assertThrows(() -> st.insert(null, people[8]));
+        assertThrows(() -> st.insert(people[0], null));
+        // Names are unique in the whole tree, even when inserting into a subtree
+        assertThrows(() -> b.insert(people[2], people[1]));
+        assertThrows(() -> b.insert(people[1], people[8]));
+        b.insert(people[2], people[8]);
+        assertTrue(st.contains(people[8]));
+        assertEquals(people[8], st.getTree(people[8]).getRoot());
+        assertFalse(b.contains(people[1]));
+        assertEquals(null, b.getTree(people[0]));
+    }
+
+    @Test
+    public void testInsertLarge() {
+        Network net= new Network();
+        Person[] ps= new Person[200_000];
+        ps[0]= new Person("p0", net, 0);
+        SharingTree st= new SharingTree(ps[0]);
+        for (int k= 1; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+            st.insert(ps[(k - 1) / 3], ps[k]);
+        }
+        for (Person p : ps) {
+            assertTrue(st.contains(p));
+            assertEquals(p, st.getTree(p).getRoot());
+        }
+    }
+
+    @Test
+    public void testParallel() {
+        Network net= new Network();
+        Person[] ps= new Person[50_000];
+        ps[0]= new Person("p0", net, 0);
+        SharingTree st= new SharingTree(ps[0]);
+        Random rnd= new Random(2110);
+        for (int k= 1; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+            st.insert(ps[rnd.nextInt(k)], ps[k]);
+        }
+        for (SharingTree sub : new SharingTree[] {st, st.getTree(ps[1]), st.getTree(ps[2])}) {
+            assertEquals(sub.maxWidth(), sub.parallelMaxWidth());
+        }
+        SharingTree leaf= st.getTree(ps[ps.length - 1]);
+        assertEquals(1, leaf.parallelMaxWidth());
+    }
+
+    @Test
+    public void testIterators() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1]);
+        st.insert(people[1], people[2]);
+        st.insert(people[0], people[3]);
+        st.insert(people[2], people[4]);
+        st.insert(people[3], people[5]);
+        // A[B[C[E]] D[F]]: each person comes after its parent in preorder, and
+        // a subtree's people come together; level order goes by depth
+        List<Person> pre= new ArrayList<>();
+        st.preorderIterator().forEachRemaining(pre::add);
+        assertEquals(6, pre.size());
+        for (Person p : pre) {
+            Person par= st.getParent(p);
+            if (par != null) assertTrue(pre.indexOf(par) < pre.indexOf(p));
+        }
+        int b= pre.indexOf(people[1]);
+        assertEquals(new HashSet<>(Arrays.asList(people[1], people[2], people[4])),
+                new HashSet<>(pre.subList(b, b + 3)));
+
+        List<Person> level= new ArrayList<>();
+        st.levelOrderIterator().forEachRemaining(level::add);
+        assertEquals(6, level.size());
+        for (int k= 1; k < level.size(); k++) {
+            assertTrue(st.depth(level.get(k - 1)) <= st.depth(level.get(k)));
+        }
+        Iterator<Person> sub= st.getTree(people[3]).levelOrderIterator();
+        assertEquals(people[3], sub.next());
+        assertEquals(people[5], sub.next());
+        assertFalse(sub.hasNext());
+        try {
+            sub.next();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+        }
+
+        // The iterators are fail-fast
+        Iterator<Person> it= st.preorderIterator();
+        it.next();
+        st.insert(people[5], people[6]);
+        try {
+            it.next();
+            fail("expected ConcurrentModificationException");
+        } catch (ConcurrentModificationException e) {
+        }
+    }
+
+    @Test
+    public void testStream() {
+        Person[] ps= CascadeShape.people(new Network(), 50_000);
+        for (CascadeShape shape : CascadeShape.values()) {
+            SharingTree st= shape.build(ps, 2110);
+            assertEquals(ps.length, st.stream().count());
+            assertEquals(ps.length, st.parallelStream().distinct().count());
+            assertEquals(ps.length, st.parallelStream().filter(st::contains).count());
+            SharingTree sub= st.getTree(ps[1]);
+            assertEquals(sub.size(), sub.parallelStream().filter(sub::contains).count());
+        }
+
+        // A balanced tree splits into parts of about the same size, which
+        // together cover the tree once
+        SharingTree st= CascadeShape.BALANCED.build(ps, 0);
+        Spliterator<Person> a= st.spliterator();
+        Spliterator<Person> b= a.trySplit();
+        assertNotNull(b);
+        assertEquals(ps.length, a.estimateSize() + b.estimateSize());
+        assertTrue(Math.min(a.estimateSize(), b.estimateSize()) > ps.length / 4);
+        Set<Person> seen= Collections.newSetFromMap(new IdentityHashMap<>());
+        a.forEachRemaining(seen::add);
+        b.forEachRemaining(seen::add);
+        assertEquals(ps.length, seen.size());
+
+        // A chain can't be split, and a leaf is one person
+        assertNull(CascadeShape.CHAIN.build(ps, 0).spliterator().trySplit());
+        assertEquals(1, st.getTree(ps[ps.length - 1]).stream().count());
+    }
+
+    @Test
+    public void testToString() throws IOException {
+        SharingTree st= new SharingTree(people[0]);
+        assertEquals(people[0].toString(), st.toString());
+        st.insert(people[0], people[1]);
+        st.insert(people[1], people[2]);
+        st.insert(people[1], people[3]);
+        String sep= SharingTree.SEPARATOR, start= SharingTree.START_CHILDREN_DELIMITER,
+                end= SharingTree.END_CHILDREN_DELIMITER;
+        String c= people[2] + SharingTree.DELIMITER + people[3];
+        if (!st.toString().contains(c)) {
+            c= people[3] + SharingTree.DELIMITER + people[2];
+        }
+        String expected= people[0] + sep + start + people[1] + sep + start + c + end + end;
+        assertEquals(expected, st.toString());
+        StringBuilder sb= new StringBuilder("x");
+        st.writeTo(sb);
+        assertEquals("x" + expected, sb.toString());
+
+        String tab= SharingTree.VERBOSE_SPACE_INCREMENT;
+        String verbose= st.toStringVerbose();
+        assertTrue(verbose.startsWith(people[0] + "\n" + tab + people[1] + "\n" + tab + tab));
+        assertTrue(verbose.contains("\n" + tab + tab + people[2]));
+        assertTrue(verbose.contains("\n" + tab + tab + people[3]));
+        assertEquals(4, verbose.split("\n").length);
+        sb= new StringBuilder();
+        st.writeVerboseTo(sb);
+        assertEquals(verbose, sb.toString());
+    }
+
+    @Test
+    public void testDeepChain() {
+        // Deep enough to overflow the stack if any of these recursed per node
+        Network net= new Network();
+        Person[] ps= new Person[100_000];
+        ps[0]= new Person("p0", net, 0);
+        SharingTree st= new SharingTree(ps[0]);
+        for (int k= 1; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+            st.insert(ps[k - 1], ps[k]);
+        }
+        SharingTree sub= st.getTree(ps[1]);
+        assertEquals(ps.length, st.size());
+        assertEquals(ps.length - 1, sub.size());
+        assertEquals(ps.length - 2, sub.maxDepth());
+        assertEquals(1, sub.maxWidth());
+        assertEquals(1, sub.widthAtDepth(ps.length - 2));
+        SharingTree copy= new SharingTree(st);
+        assertEquals(st, copy);
+        assertEquals(sub, new SharingTree(sub));
+        copy.insert(ps[ps.length - 1], people[0]);
+        assertFalse(st.equals(copy));
+        assertEquals(ps.length - 1, st.depth(ps[ps.length - 1]));
+        assertTrue(st.toString().contains(SharingTree.SEPARATOR + SharingTree.START_CHILDREN_DELIMITER + ps[ps.length - 1] + SharingTree.END_CHILDREN_DELIMITER));
+    }
+
+    /** Fail unless running r throws an IllegalArgumentException. */
+    private static void assertThrows(Runnable r) {
+        try {
+            r.run();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        fail("expected IllegalArgumentException");
+    }
+
+    @Test
+    public void testInsertAll() {
+        List<SharingTree.Reshare> edges= new ArrayList<>();
+        edges.add(new SharingTree.Reshare(people[0], people[1]));
+        edges.add(new SharingTree.Reshare(people[1], people[2]));
+        edges.add(new SharingTree.Reshare(people[0], people[3]));
+        SharingTree st= SharingTree.build(people[0], edges.stream());
+        assertEquals("A[B[C] D]", toStringBrief(st));
+
+        SharingTree.Reshare dup= new SharingTree.Reshare(people[2], people[1]);
+        SharingTree.Reshare early= new SharingTree.Reshare(people[5], people[6]);
+        SharingTree.Reshare noChild= new SharingTree.Reshare(people[0], null);
+        edges.add(dup);
+        edges.add(early);
+        edges.add(new SharingTree.Reshare(people[3], people[5]));
+        edges.add(noChild);
+        edges.add(null);
+        try {
+            SharingTree.build(people[0], edges.iterator());
+            fail("expected InvalidReshareException");
+        } catch (SharingTree.InvalidReshareException e) {
+            assertEquals(Arrays.asList(dup, early, noChild, null), e.getRejected());
+            assertEquals("A[B[C] D[F]]", toStringBrief(e.getTree()));
+        }
+
+        // Inserting into an existing tree keeps the valid reshares
+        SharingTree st2= new SharingTree(people[0]);
+        st2.insert(people[0], people[7]);
+        try {
+            st2.insertAll(Arrays.asList(new SharingTree.Reshare(people[7], people[8]),
+                    new SharingTree.Reshare(people[9], people[10])).iterator());
+            fail("expected InvalidReshareException");
+        } catch (SharingTree.InvalidReshareException e) {
+            assertEquals(1, e.getRejected().size());
+        }
+        assertEquals("A[H[I]]", toStringBrief(st2));
+    }
+
+    @Test
+    public void testAsOf() {
+        // A[B[D[G]] C[E F]] grown at times 10, 20, ..., 60
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1], 10);
+        st.insert(people[0], people[2], 20);
+        st.insert(people[1], people[3], 30);
+        st.insert(people[2], people[4], 30);
+        st.insert(people[2], people[5], 50);
+        st.insert(people[3], people[6], 60);
+        assertThrows(() -> st.insert(people[0], people[7], 59));
+        assertEquals(7, st.size());
+        assertEquals(Long.MIN_VALUE, st.getInsertTime(people[0]));
+        assertEquals(30, st.getInsertTime(people[4]));
+        assertThrows(() -> st.getInsertTime(people[7]));
+
+        assertEquals(1, st.sizeAsOf(0));
+        assertEquals(3, st.sizeAsOf(20));
+        assertEquals(5, st.sizeAsOf(30));
+        assertEquals(5, st.sizeAsOf(49));
+        assertEquals(7, st.sizeAsOf(Long.MAX_VALUE));
+        assertEquals(0, st.maxDepthAsOf(9));
+        assertEquals(1, st.maxDepthAsOf(29));
+        assertEquals(2, st.maxDepthAsOf(30));
+        assertEquals(3, st.maxDepthAsOf(60));
+        assertEquals(1, st.widthAtDepthAsOf(0, 0));
+        assertEquals(1, st.widthAtDepthAsOf(1, 15));
+        assertEquals(2, st.widthAtDepthAsOf(2, 30));
+        assertEquals(3, st.widthAtDepthAsOf(2, 50));
+        assertEquals(0, st.widthAtDepthAsOf(5, 50));
+        assertThrows(() -> st.widthAtDepthAsOf(-1, 50));
+        assertEquals(1, st.getChildrenAsOf(10).size());
+        assertEquals(2, st.getChildrenAsOf(20).size());
+
+        // On a subtree, the same queries walk the part that existed
+        SharingTree c= st.getTree(people[2]);
+        assertEquals(0, c.sizeAsOf(19));
+        assertEquals(-1, c.maxDepthAsOf(19));
+        assertEquals(2, c.sizeAsOf(30));
+        assertEquals(1, c.maxDepthAsOf(30));
+        assertEquals(2, c.widthAtDepthAsOf(1, 50));
+        assertEquals(0, c.widthAtDepthAsOf(1, 25));
+
+        // A copy keeps the times; a plain insert is not before the last one
+        SharingTree copy= new SharingTree(st);
+        assertEquals(5, copy.sizeAsOf(30));
+        assertEquals(60, copy.getInsertTime(people[6]));
+        SharingTree late= new SharingTree(people[0]);
+        late.insert(people[0], people[1], Long.MAX_VALUE);
+        late.insert(people[0], people[2]);
+        assertEquals(Long.MAX_VALUE, late.getInsertTime(people[2]));
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1], 10);
+        st.insert(people[0], people[2], 20);
+        st.insert(people[1], people[3], 30);
+        st.insert(people[2], people[4], 40);
+        st.insert(people[2], people[5], 50);
+        st.insert(people[5], people[6], 60);
+        assertEquals(3, st.maxWidth());
+        st.buildAncestorIndex();
+        assertEquals(people[0], st.getSharedAncestor(people[3], people[6]));
+
+        SharingTree c= st.removeSubtree(people[2]);
+        assertEquals("A[B[D]]", toStringBrief(st));
+        assertEquals("C[E F[G]]", toStringBrief(c));
+        assertEquals(3, st.size());
+        assertEquals(2, st.maxDepth());
+        assertEquals(1, st.maxWidth());
+        assertEquals(0, st.widthAtDepth(3));
+        assertFalse(st.contains(people[6]));
+        assertEquals(people[1], st.getSharedAncestor(people[3], people[1]));
+        assertEquals(2, st.sizeAsOf(25));
+        assertEquals(3, st.sizeAsOf(60));
+        assertEquals(1, st.maxDepthAsOf(25));
+
+        // The removed people form a tree of their own
+        assertNull(c.getParent(people[2]));
+        assertEquals(Long.MIN_VALUE, c.getInsertTime(people[2]));
+        assertEquals(4, c.size());
+        assertEquals(2, c.maxDepth());
+        assertEquals(2, c.maxWidth());
+        assertEquals(1, c.depth(people[4]));
+        assertEquals(2, c.sizeAsOf(40));
+        assertEquals(people[5], c.getSharedAncestor(people[5], people[6]));
+
+        // People can be inserted again, in either tree
+        st.insert(people[3], people[2]);
+        c.insert(people[6], people[7]);
+        assertEquals("A[B[D[C]]]", toStringBrief(st));
+        assertEquals(3, c.maxDepth());
+
+        assertThrows(() -> st.removeSubtree(people[0]));
+        assertThrows(() -> st.removeSubtree(people[8]));
+        assertThrows(() -> st.removeSubtree(null));
+        assertThrows(() -> st.getTree(people[1]).removeSubtree(people[1]));
+        st.getTree(people[1]).removeSubtree(people[2]);
+        assertEquals("A[B[D]]", toStringBrief(st));
+    }
+
+    @Test
+    public void testReparent() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1], 10);
+        st.insert(people[0], people[2], 20);
+        st.insert(people[1], people[3], 30);
+        st.insert(people[2], people[4], 40);
+        st.insert(people[2], people[5], 50);
+        st.insert(people[5], people[6], 60);
+
+        st.reparent(people[5], people[3]);
+        assertEquals("A[B[D[F[G]]] C[E]]", toStringBrief(st));
+        assertEquals(4, st.maxDepth());
+        assertEquals(4, st.depth(people[6]));
+        assertEquals(2, st.maxWidth());
+        assertEquals(1, st.widthAtDepth(3));
+        assertEquals(7, st.size());
+        assertEquals(4, st.getTree(people[1]).size());  // B's subtree: B, D, F, G
+        assertEquals(people[3], st.getSharedAncestor(people[6], people[3]));
+        assertEquals(3, st.maxDepthAsOf(50));
+        assertEquals(1, st.widthAtDepthAsOf(3, 55));
+
+        st.reparent(people[3], people[0]);
+        assertEquals("A[B C[E] D[F[G]]]", toStringBrief(st));
+        assertEquals(3, st.widthAtDepth(1));
+        assertEquals(3, st.maxWidth());
+        assertEquals(3, st.maxDepth());
+        st.reparent(people[3], people[0]);  // already its parent
+        assertEquals(3, st.maxWidth());
+
+        assertThrows(() -> st.reparent(people[3], people[6]));   // cycle
+        assertThrows(() -> st.reparent(people[3], people[3]));   // cycle
+        assertThrows(() -> st.reparent(people[0], people[1]));   // the root
+        assertThrows(() -> st.reparent(people[3], people[9]));
+        assertThrows(() -> st.reparent(null, people[1]));
+        assertThrows(() -> st.getTree(people[2]).reparent(people[4], people[1]));
+        assertEquals("A[B C[E] D[F[G]]]", toStringBrief(st));
+
+        // B (inserted at 10) moves under G (inserted at 60), so as of an
+        // earlier time it is not counted
+        st.reparent(people[1], people[6]);
+        assertEquals("A[C[E] D[F[G[B]]]]", toStringBrief(st));
+        assertEquals(10, st.getInsertTime(people[1]));
+        assertEquals(1, st.sizeAsOf(10));
+        assertEquals(2, st.sizeAsOf(20));
+        assertEquals(5, st.sizeAsOf(59));
+        assertEquals(7, st.sizeAsOf(60));
+        assertEquals(2, st.maxDepthAsOf(59));
+        assertEquals(4, st.maxDepthAsOf(60));
+        assertEquals(0, st.widthAtDepthAsOf(4, 59));
+        assertEquals(1, st.widthAtDepthAsOf(4, 60));
+        SharingTree d= st.getTree(people[3]);
+        assertEquals(2, d.sizeAsOf(59));
+        assertEquals(4, d.sizeAsOf(60));
+        assertEquals(3, d.maxDepthAsOf(60));
+
+        // A copy keeps the times and answers the same
+        SharingTree copy= new SharingTree(st);
+        assertEquals(st, copy);
+        assertEquals(10, copy.getInsertTime(people[1]));
+        assertEquals(5, copy.sizeAsOf(59));
+        assertEquals(2, copy.maxDepthAsOf(59));
+        copy.insert(people[1], people[7]);
+        assertEquals(8, copy.sizeAsOf(Long.MAX_VALUE));
+        assertEquals(5, copy.maxDepth());
+    }
+
+    /** Remove and move random subtrees of a random tree, checking the
+     * cached figures against ones computed from getChildren. */
+    @Test
+    public void testRemoveAndReparentRandom() {
+        Network net= new Network();
+        Person[] ps= CascadeShape.people(net, 400);
+        Random rnd= new Random(22);
+        SharingTree st= CascadeShape.RANDOM.build(ps, 22);
+        st.buildAncestorIndex();
+        for (int round= 0; round < 300; round++) {
+            Person a= ps[rnd.nextInt(ps.length)];
+            Person b= ps[rnd.nextInt(ps.length)];
+            if (!st.contains(a) || a == ps[0]) {
+                if (!st.contains(a) && st.contains(b)) st.insert(b, a);
+            } else if (rnd.nextInt(4) == 0) {
+                st.removeSubtree(a);
+            } else if (st.contains(b)) {
+                try {
+                    st.reparent(a, b);
+                } catch (IllegalArgumentException e) {
+                    // a cycle; the tree must be unchanged
+                }
+            }
+
+            // Depths and widths from a walk of getChildren
+            Map<Person, Integer> depths= new IdentityHashMap<>();
+            List<Integer> widths= new ArrayList<>();
+            ArrayDeque<SharingTree> queue= new ArrayDeque<>();
+            queue.add(st);
+            depths.put(st.getRoot(), 0);
+            while (!queue.isEmpty()) {
+                SharingTree t= queue.remove();
+                int d= depths.get(t.getRoot());
+                if (widths.size() == d) widths.add(0);
+                widths.set(d, widths.get(d) + 1);
+                for (SharingTree c : t.getChildren()) {
+                    depths.put(c.getRoot(), d + 1);
+                    queue.add(c);
+                }
+            }
+            assertEquals(depths.size(), st.size());
+            assertEquals(widths.size() - 1, st.maxDepth());
+            assertEquals((int) Collections.max(widths), st.maxWidth());
+            assertEquals(depths.size(), st.sizeAsOf(Long.MAX_VALUE));
+            assertEquals(widths.size() - 1, st.maxDepthAsOf(Long.MAX_VALUE));
+            for (int d= 0; d < widths.size(); d++) {
+                assertEquals((int) widths.get(d), st.widthAtDepth(d));
+                assertEquals((int) widths.get(d), st.widthAtDepthAsOf(d, Long.MAX_VALUE));
+            }
+            for (Person p : depths.keySet()) {
+                assertEquals((int) depths.get(p), st.depth(p));
+            }
+            Person x= ps[rnd.nextInt(ps.length)];
+            Person y= ps[rnd.nextInt(ps.length)];
+            if (st.contains(x)) {
+                SharingTree t= st.getTree(x);
+                assertEquals(countNodes(t), t.size());
+                assertEquals(height(t), t.maxDepth());
+            }
+            if (st.contains(x) && st.contains(y)) {
+                List<Person> rx= st.getSharingRoute(x);
+                List<Person> ry= st.getSharingRoute(y);
+                int k= 0;
+                while (k < rx.size() && k < ry.size() && rx.get(k) == ry.get(k)) k++;
+                assertEquals(rx.get(k - 1), st.getSharedAncestor(x, y));
+            }
+        }
+        assertEquals(st, new SharingTree(st));
+    }
+
+    /** Move random people under people inserted later, checking the "as of"
+     * answers of random subtrees against a count over the routes from the
+     * root of the whole tree: a person is counted iff no one on its route was
+     * inserted after the time. */
+    @Test
+    public void testAsOfSubtreeAfterMove() {
+        Network net= new Network();
+        Person[] ps= CascadeShape.people(net, 60);
+        Random rnd= new Random(23);
+        SharingTree st= new SharingTree(ps[0]);
+        List<Person> in= new ArrayList<>();
+        in.add(ps[0]);
+        long now= 0;
+        for (int k= 1; k < ps.length; k++) {
+            now= now + 1 + rnd.nextInt(3);
+            st.insert(in.get(rnd.nextInt(in.size())), ps[k], now);
+            in.add(ps[k]);
+            if (rnd.nextInt(3) == 0) {
+                try {
+                    st.reparent(in.get(1 + rnd.nextInt(in.size() - 1)), ps[k]);
+                } catch (IllegalArgumentException e) {
+                    // a cycle; the tree is unchanged
+                }
+            }
+
+            for (int q= 0; q < 5; q++) {
+                Person x= in.get(rnd.nextInt(in.size()));
+                long time= rnd.nextInt((int) now + 2);
+                int size= 0;
+                int max= -1;
+                int[] widths= new int[ps.length];
+                for (Person p : in) {
+                    List<Person> route= st.getSharingRoute(p);
+                    int i= route.indexOf(x);
+                    if (i < 0) continue;
+                    long from= Long.MIN_VALUE;
+                    for (Person r : route) from= Math.max(from, st.getInsertTime(r));
+                    if (from > time) continue;
+                    int d= route.size() - 1 - i;
+                    size++;
+                    max= Math.max(max, d);
+                    widths[d]++;
+                }
+                SharingTree t= st.getTree(x);
+                assertEquals(size, t.sizeAsOf(time));
+                assertEquals(max, t.maxDepthAsOf(time));
+                for (int d= 0; d <= max + 1; d++) {
+                    assertEquals(widths[d], t.widthAtDepthAsOf(d, time));
+                }
+                // The root's subtree is the whole tree, answered from its index
+                if (x == ps[0]) {
+                    assertEquals(size, st.sizeAsOf(time));
+                    assertEquals(max, st.maxDepthAsOf(time));
+                }
+            }
+        }
+    }
+
     @Test
     public void testSize() {
         SharingTree st= new SharingTree(people[1]); 
@@ -63,6 +608,62 @@ public class SharingTreeTest {
         assertEquals(5, st.size());
     }
     
+    @Test
+    public void testSubtreeSizesWhileGrowing() {
+        Network net= new Network();
+        Person[] ps= new Person[400];
+        ps[0]= new Person("p0", net, 0);
+        SharingTree st= new SharingTree(ps[0]);
+        Random rnd= new Random(2110);
+        for (int k= 1; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+            st.insert(ps[rnd.nextInt(k)], ps[k]);
+            if (k % 37 == 0) {
+                for (int j= 0; j <= k; j++) {
+                    SharingTree t= st.getTree(ps[j]);
+                    assertEquals(countNodes(t), t.size());
+                    assertEquals(height(t), t.maxDepth());
+                }
+            }
+        }
+    }
+
+    /** The size of a subtree with many children is kept up to date in
+     * constant time per insert, not in time proportional to its width. */
+    @Test
+    public void testSubtreeSizeOfWideNode() {
+        Network net= new Network();
+        Person[] ps= CascadeShape.people(net, 200_000);
+        SharingTree st= new SharingTree(ps[0]);
+        st.insert(ps[0], ps[1]);
+        SharingTree sub= st.getTree(ps[1]);
+        for (int k= 2; k < ps.length; k++) {
+            st.insert(ps[1], ps[k]);
+            assertEquals(k, sub.size());
+            assertEquals(k + 1, st.size());
+        }
+        assertEquals(1, sub.maxDepth());
+        assertEquals(2, st.maxDepth());
+    }
+
+    /** Return the number of nodes of t, counted through getChildren(). */
+    private static int countNodes(SharingTree t) {
+        int n= 1;
+        for (SharingTree c : t.getChildren()) {
+            n= n + countNodes(c);
+        }
+        return n;
+    }
+
+    /** Return the maximum depth of t, computed through getChildren(). */
+    private static int height(SharingTree t) {
+        int h= 0;
+        for (SharingTree c : t.getChildren()) {
+            h= Math.max(h, height(c) + 1);
+        }
+        return h;
+    }
+
     @Test
     public void testDepth() {
         SharingTree st= new SharingTree(people[1]); 
@@ -73,6 +674,31 @@ public class SharingTreeTest {
         st.insert(people[4], people[5]);
         assertEquals(3, st.depth(people[5]));
         assertEquals(-1, st.depth(people[6]));
+        // Depth below a child other than the first one visited
+        st.insert(people[3], people[6]);
+        st.insert(people[6], people[7]);
+        assertEquals(2, st.depth(people[6]));
+        assertEquals(3, st.depth(people[7]));
+        assertEquals(2, st.getTree(people[3]).depth(people[7]));
+        assertEquals(-1, st.getTree(people[3]).depth(people[5]));
+    }
+
+    @Test
+    public void testGetParent() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1]);
+        st.insert(people[0], people[2]);
+        st.insert(people[1], people[3]);
+        st.insert(people[2], people[4]);
+        st.insert(people[2], people[5]);
+        st.insert(people[3], people[6]);
+        assertEquals(people[2], st.getParent(people[4]));
+        assertEquals(people[2], st.getTree(people[2]).getParent(people[4]));
+        assertEquals(people[0], st.getParent(people[1]));
+        assertEquals(null, st.getParent(people[0]));
+        assertEquals(null, st.getTree(people[4]).getParent(people[5]));
+        assertEquals(null, st.getTree(people[1]).getParent(people[1]));
+        assertEquals(null, st.getParent(people[9]));
     }
     
     @Test
@@ -89,6 +715,37 @@ public class SharingTreeTest {
         assertEquals(3, st.widthAtDepth(2));
         assertEquals(1, st.widthAtDepth(3));
         assertEquals(0, st.widthAtDepth(4));
+        SharingTree c= st.getTree(people[2]);
+        assertEquals(1, c.widthAtDepth(0));
+        assertEquals(2, c.widthAtDepth(1));
+        assertEquals(1, c.widthAtDepth(2));
+        assertThrows(() -> st.widthAtDepth(-1));
+    }
+
+    @Test
+    public void testMaxWidth() {
+        SharingTree st= new SharingTree(people[0]);
+        assertEquals(1, st.maxWidth());
+        assertEquals(0, st.maxDepth());
+        st.insert(people[0], people[1]);
+        st.insert(people[0], people[2]);
+        st.insert(people[1], people[3]);
+        st.insert(people[2], people[4]);
+        assertEquals(2, st.maxWidth());
+        st.insert(people[2], people[5]);
+        st.insert(people[5], people[6]);
+        assertEquals(3, st.maxWidth());
+        assertEquals(3, st.maxDepth());
+        assertEquals(SharingTree.maxWidthImplementationOne(st), st.maxWidth());
+        assertEquals(SharingTree.maxWidthImplementationThree(st), st.maxWidth());
+        SharingTree c= st.getTree(people[2]);
+        assertEquals(2, c.maxWidth());
+        assertEquals(2, c.maxDepth());
+        // A copy keeps the same widths
+        SharingTree copy= new SharingTree(st);
+        assertEquals(3, copy.maxWidth());
+        assertEquals(3, copy.maxDepth());
+        assertEquals(1, copy.widthAtDepth(3));
     }
     
     @Test
@@ -115,6 +772,35 @@ public class SharingTreeTest {
         assertEquals(l, st.getTree(people[1]).getSharingRoute(people[3]));
     }
     
+    @Test
+    public void testGetSharingRoutes() {
+        SharingTree st= new SharingTree(people[0]);
+        st.insert(people[0], people[1]);
+        st.insert(people[0], people[2]);
+        st.insert(people[1], people[3]);
+        st.insert(people[2], people[4]);
+        st.insert(people[2], people[5]);
+        st.insert(people[5], people[6]);
+
+        Map<Person, Person[]> routes= st.getSharingRoutes(
+                Arrays.asList(people[6], people[0], people[7], null, people[3], people[6]));
+        assertEquals(3, routes.size());
+        assertArrayEquals(new Person[]{people[0]}, routes.get(people[0]));
+        assertArrayEquals(new Person[]{people[0], people[1], people[3]}, routes.get(people[3]));
+        for (Person p : routes.keySet()) {
+            assertEquals(st.getSharingRoute(p), Arrays.asList(routes.get(p)));
+        }
+
+        SharingTree sub= st.getTree(people[2]);
+        routes= sub.getSharingRoutes(Arrays.asList(people));
+        assertEquals(4, routes.size());
+        assertArrayEquals(new Person[]{people[2], people[5], people[6]}, routes.get(people[6]));
+        assertFalse(routes.containsKey(people[1]));
+        assertFalse(routes.containsKey(people[3]));
+        assertTrue(st.getSharingRoutes(new ArrayList<>()).isEmpty());
+        assertThrows(() -> st.getSharingRoutes(null));
+    }
+
     @Test
     public void testGetSharedAncestor() {
         SharingTree st= new SharingTree(people[0]);
@@ -131,6 +817,36 @@ public class SharingTreeTest {
         assertEquals(null, st.getTree(people[1]).getSharedAncestor(people[3], people[2]));
     }
     
+    @Test
+    public void testGetSharedAncestorIndexed() {
+        Network net= new Network();
+        Person[] ps= new Person[500];
+        ps[0]= new Person("p0", net, 0);
+        SharingTree st= new SharingTree(ps[0]);
+        SharingTree indexed= new SharingTree(ps[0]);
+        indexed.buildAncestorIndex();
+        Random rnd= new Random(2110);
+        for (int k= 1; k < ps.length; k++) {
+            ps[k]= new Person("p" + k, net, 0);
+            Person p= ps[rnd.nextInt(k)];
+            st.insert(p, ps[k]);
+            indexed.insert(p, ps[k]);
+            // Query between inserts so the index gets rebuilt
+            if (k % 50 == 0) {
+                assertEquals(st.getSharedAncestor(ps[k], ps[k / 2]),
+                        indexed.getSharedAncestor(ps[k], ps[k / 2]));
+            }
+        }
+        for (int k= 0; k < 2000; k++) {
+            Person a= ps[rnd.nextInt(ps.length)];
+            Person b= ps[rnd.nextInt(ps.length)];
+            assertEquals(st.getSharedAncestor(a, b), indexed.getSharedAncestor(a, b));
+        }
+        SharingTree sub= indexed.getTree(ps[1]);
+        assertEquals(null, sub.getSharedAncestor(ps[1], ps[0]));
+        assertEquals(ps[1], sub.getSharedAncestor(ps[1], ps[1]));
+    }
+
     @Test
     public void testEquals() {
         SharingTree st= new SharingTree(people[0]);
@@ -152,6 +868,38 @@ public class SharingTreeTest {
         //testing copy
         SharingTree st3= new SharingTree(st);
         assertEquals(st, st3);
+
+        //same children but different grandchildren
+        st.insert(people[2], people[4]);
+        st2.insert(people[1], people[4]);
+        assertFalse(st.equals(st2));
+        assertFalse(st2.equals(st));
+        assertFalse(st.equals(people[0]));
+    }
+
+    @Test
+    public void testEqualsAfterInserts() {
+        // Compare, then grow both trees deep down so cached hashes go stale
+        SharingTree st= new SharingTree(people[0]);
+        SharingTree st2= new SharingTree(people[0]);
+        for (SharingTree t : new SharingTree[] {st, st2}) {
+            t.insert(people[0], people[1]);
+            t.insert(people[1], people[2]);
+            t.insert(people[2], people[3]);
+            t.insert(people[0], people[4]);
+        }
+        assertEquals(st, st2);
+        assertEquals(st.getTree(people[1]), st2.getTree(people[1]));
+        st.insert(people[3], people[5]);
+        assertFalse(st.equals(st2));
+        assertFalse(st.getTree(people[2]).equals(st2.getTree(people[2])));
+        assertEquals(st.getTree(people[4]), st2.getTree(people[4]));
+        st2.insert(people[3], people[5]);
+        assertEquals(st, st2);
+        assertEquals(st.getTree(people[2]), st2.getTree(people[2]));
+        st.insert(people[4], people[6]);
+        st2.insert(people[5], people[6]);
+        assertFalse(st.equals(st2));
     }
     
     
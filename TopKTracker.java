@@ -0,0 +1,684 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/** An instance ranks the people of a whole SharingTree (a cascade) by how
+ * many people their reshares reached (the size of their subtree) and by
+ * their number of children, and keeps both rankings up to date as people
+ * are inserted, so that the top k of either is found without calling size()
+ * on every node.
+ * <p>
+ * The ranking by children is a list of buckets, one for each value that
+ * some person has, in increasing order of value; a person is in the bucket
+ * of its value. An insert adds 1 to the children count of the new person's
+ * parent, which moves it to the next bucket in constant time.
+ * <p>
+ * An insert adds 1 to the subtree size of every ancestor of the new person,
+ * so the subtree sizes are kept in a link-cut tree: the tree is split into
+ * paths, each kept in a splay tree whose nodes hold pending additions for
+ * the nodes below them. An insert makes the path from the root to the new
+ * person's parent one path and adds 1 to all of it at once, in O(log n)
+ * amortized time. A person's subtree size is read by splaying it, in O(log n)
+ * amortized time.
+ * <p>
+ * A person at the top of a path (other than the root) gets no additions
+ * while it stays at the top, so the people at the tops of paths are ranked
+ * by subtree size, in buckets found through a bit set of the sizes. Each
+ * change of path (O(log n) amortized per insert) moves one person into and
+ * one person out of that ranking in constant time. The top k is then merged
+ * from that ranking and, for each person taken, the next person down its
+ * path (whose subtree is smaller), in O(k log n) amortized time.
+ * <p>
+ * A removal (removeSubtree) or move (reparent) cuts the subtree from the
+ * path above it, subtracting its size from all of that path at once, in
+ * O(log n) amortized time; a move then links it below its new parent as an
+ * insert links a new person. A removal takes each person of the subtree out
+ * of both rankings, in constant time per person.
+ * People with equal values are ranked in no particular order. */
+public class TopKTracker {
+
+    /** The root node of the whole tree that is tracked. */
+    private final SharingTree tree;
+
+    /** Each Person's node in the link-cut tree of subtree sizes. */
+    private final Map<Person, Node> nodes= new IdentityHashMap<>();
+
+    /** The node of the root of the tree (null until the first build). */
+    private Node root;
+
+    /** The nodes at the tops of paths, other than root, by subtree size. */
+    private final Tops tops= new Tops();
+
+    /** The people of the tree ranked by number of children, and each
+     * Person's entry in that ranking. */
+    private final Ranking counts= new Ranking();
+    private final Map<Person, Entry> byCount= new IdentityHashMap<>();
+
+    /** The number of people still to be told of as removed that are below
+     * the last person whose subtree was cut off by a removal. */
+    private int dropping;
+
+    /** true while inserts into the tree update the rankings. */
+    private boolean attached;
+
+    /** Room for the nodes on the way up a splay tree (see splay). */
+    private Node[] stack= new Node[64];
+
+    /** Is told of each change of the tree. */
+    private final SharingTree.ChangeListener listener= new SharingTree.ChangeListener() {
+        public void inserted(SharingTree top, Person p) {
+            add(p, top.getParent(p));
+        }
+
+        public void removed(SharingTree top, Person p) {
+            // The people of a removed subtree come in preorder, so p is either
+            // below the last person cut off or the root of a new subtree
+            if (dropping > 0) {
+                dropping--;
+            } else {
+                Node x= nodes.get(p);
+                counts.decrement(byCount.get(cut(x).person));
+                dropping= x.size - 1;
+            }
+            drop(p);
+        }
+
+        public void moved(SharingTree top, Person p) {
+            Node x= nodes.get(p);
+            counts.decrement(byCount.get(cut(x).person));
+            Person q= top.getParent(p);
+            link(x, nodes.get(q));
+            counts.increment(byCount.get(q));
+        }
+    };
+
+    /** Constructor: a tracker of the whole tree st belongs to, with the
+     * people already in it. Takes time proportional to the size of that tree.
+     * Throw an IllegalArgumentException if st is null. */
+    public TopKTracker(SharingTree st) throws IllegalArgumentException {
+        if (st == null) throw new IllegalArgumentException("Can't track null");
+        tree= st.wholeTree();
+        rebuild();
+        tree.addChangeListener(listener);
+        attached= true;
+    }
+
+    /** Stop tracking the tree: later changes to it do not change the
+     * rankings, and this tracker no longer holds on to the tree's listeners. */
+    public void close() {
+        if (!attached) return;
+        tree.removeChangeListener(listener);
+        attached= false;
+    }
+
+    /** Add new Person p, a leaf whose parent is q, to the rankings.
+     * Takes O(log n) amortized time. */
+    private void add(Person p, Person q) {
+        Node n= new Node(p, 1);
+        nodes.put(p, n);
+        link(n, nodes.get(q));
+
+        Entry c= new Entry(p);
+        byCount.put(p, c);
+        counts.addLowest(c, 0);
+        counts.increment(byCount.get(q));
+    }
+
+    /** Take Person p, which has been cut off from the tree, out of the
+     * rankings, in constant time. */
+    private void drop(Person p) {
+        Node x= nodes.remove(p);
+        if (x.topSize > 0) tops.remove(x);
+        counts.remove(byCount.remove(p));
+    }
+
+    /** Make the rankings those of the tree, in time proportional to its size. */
+    private void rebuild() {
+        FrozenSharingTree f= tree.freeze();
+        int n= f.size();
+        // People are numbered in preorder, so going backwards, a subtree is
+        // complete when its root is reached
+        int[] size= new int[n];
+        int[] kids= new int[n];
+        for (int i= n - 1; i > 0; i--) {
+            size[i]++;
+            size[f.parent(i)]+= size[i];
+            kids[f.parent(i)]++;
+        }
+        size[0]++;
+
+        // Each node is a path of its own, so all but the root are tops
+        nodes.clear();
+        tops.clear(n);
+        Node[] ns= new Node[n];
+        Entry[] cs= new Entry[n];
+        for (int i= 0; i < n; i++) {
+            ns[i]= new Node(f.person(i), size[i]);
+            if (i > 0) {
+                ns[i].parent= ns[f.parent(i)];
+                tops.add(ns[i], size[i]);
+            }
+            nodes.put(f.person(i), ns[i]);
+            cs[i]= new Entry(f.person(i));
+        }
+        root= ns[0];
+        fill(counts, byCount, cs, kids);
+    }
+
+    /** Make r and m hold exactly the entries es, where es[i] has value v[i].
+     * Precondition: the values are in 0..es.length. */
+    private static void fill(Ranking r, Map<Person, Entry> m, Entry[] es, int[] v) {
+        r.clear();
+        m.clear();
+        // A counting sort by value, so that each entry is added at the high end
+        int[] start= new int[es.length + 2];
+        for (int x : v) {
+            start[x + 1]++;
+        }
+        for (int x= 1; x < start.length; x++) {
+            start[x]+= start[x - 1];
+        }
+        Entry[] sorted= new Entry[es.length];
+        int[] value= new int[es.length];
+        for (int i= 0; i < es.length; i++) {
+            int k= start[v[i]]++;
+            sorted[k]= es[i];
+            value[k]= v[i];
+        }
+        for (int k= 0; k < sorted.length; k++) {
+            r.addHighest(sorted[k], value[k]);
+            m.put(sorted[k].person, sorted[k]);
+        }
+    }
+
+    /** Return (at most) the k people with the largest subtrees, largest
+     * first. Takes O(k log n) amortized time.
+     * Throw an IllegalArgumentException if k < 0. */
+    public List<Person> topBySubtreeSize(int k) throws IllegalArgumentException {
+        if (k < 0) throw new IllegalArgumentException("Can't return the top " + k);
+        List<Person> res= new ArrayList<>(Math.min(k, nodes.size()));
+        // A person's subtree is larger than that of the next person down its
+        // path, so merging the tops (largest first) with the next person down
+        // the path of each person taken gives all people, largest first.
+        PriorityQueue<Node> next= new PriorityQueue<>((a, b) -> Integer.compare(b.key, a.key));
+        root.key= size(root);
+        next.add(root);
+        int v= tops.max();
+        Node t= v < 0 ? null : tops.first[v];
+        while (res.size() < k && (t != null || !next.isEmpty())) {
+            Node x;
+            if (t != null && (next.isEmpty() || v >= next.peek().key)) {
+                x= t;
+                t= t.nextTop;
+                if (t == null) {
+                    v= tops.prev(v);
+                    t= v < 0 ? null : tops.first[v];
+                }
+            } else {
+                x= next.remove();
+            }
+            res.add(x.person);
+            if (x.down != null) {
+                x.down.key= size(x.down);
+                next.add(x.down);
+            }
+        }
+        return res;
+    }
+
+    /** Return (at most) the k people with the most children, most first.
+     * Takes time O(k).
+     * Throw an IllegalArgumentException if k < 0. */
+    public List<Person> topByChildrenCount(int k) throws IllegalArgumentException {
+        if (k < 0) throw new IllegalArgumentException("Can't return the top " + k);
+        List<Person> res= new ArrayList<>(Math.min(k, byCount.size()));
+        for (Bucket b= counts.highest; b != null && res.size() < k; b= b.lower) {
+            for (Entry e= b.first; e != null && res.size() < k; e= e.next) {
+                res.add(e.person);
+            }
+        }
+        return res;
+    }
+
+    /** Return the size of p's subtree (1 if p is a leaf), in O(log n)
+     * amortized time.
+     * Throw an IllegalArgumentException if p is not in the tree. */
+    public int subtreeSize(Person p) throws IllegalArgumentException {
+        Node x= nodes.get(p);
+        if (x == null) throw new IllegalArgumentException("Person not in SharingTree");
+        return size(x);
+    }
+
+    /** Return the number of children of p.
+     * Throw an IllegalArgumentException if p is not in the tree. */
+    public int childrenCount(Person p) throws IllegalArgumentException {
+        Entry e= byCount.get(p);
+        if (e == null) throw new IllegalArgumentException("Person not in SharingTree");
+        return e.bucket.value;
+    }
+
+    /*********************/
+
+    /** Return the subtree size of x. */
+    private int size(Node x) {
+        splay(x);
+        return x.size;
+    }
+
+    /** Make the path from the root to x one path, ending at x, and make x
+     * the root of its splay tree. The people that leave or join the tops
+     * on the way are moved out of or into tops. */
+    private void access(Node x) {
+        Node last= null;
+        for (Node y= x; y != null; y= y.parent) {
+            splay(y);
+            // The part of y's path below y becomes a path of its own, and the
+            // path of last (which starts at a child of y) joins y's
+            if (y.down != null) tops.add(y.down, y.right.firstSize);
+            if (last != null) tops.remove(last.first);
+            y.down= last == null ? null : last.first;
+            y.right= last;
+            y.update();
+            last= y;
+        }
+        splay(x);
+    }
+
+    /** Make x, the root of a tree of its own, a child of up: add the size of
+     * x's subtree to the path from the root to up, and make x a top. */
+    private void link(Node x, Node up) {
+        access(up);
+        up.add(x.size);
+        x.parent= up;
+        tops.add(x, x.size);
+    }
+
+    /** Cut x, which is not the root, off from its parent, so that x is the
+     * root of a tree of its own and the root of its splay tree: subtract the
+     * size of x's subtree from the path from the root to the parent, which
+     * is no longer continued down to x. Return the parent's node. */
+    private Node cut(Node x) {
+        access(x);
+        Node up= x.left;   // the path from the root to x's parent
+        up.add(-x.size);
+        up.parent= null;
+        x.left= null;
+        x.update();
+        // x's parent is the bottom of that path
+        while (up.right != null) {
+            up= up.right;
+        }
+        splay(up);
+        up.down= null;
+        return up;
+    }
+
+    /** Make x the root of its splay tree, keeping the order of the path. */
+    private void splay(Node x) {
+        // Push the pending additions down from the root of the splay tree to x
+        int n= 0;
+        for (Node z= x; ; z= z.parent) {
+            if (n == stack.length) stack= Arrays.copyOf(stack, 2 * n);
+            stack[n++]= z;
+            if (z.isRoot()) break;
+        }
+        while (n > 0) {
+            stack[--n].push();
+            stack[n]= null;
+        }
+
+        while (!x.isRoot()) {
+            Node p= x.parent;
+            if (!p.isRoot()) {
+                boolean zigzig= (p.parent.left == p) == (p.left == x);
+                (zigzig ? p : x).rotate();
+            }
+            x.rotate();
+        }
+    }
+
+    /** A Node is a Person in the link-cut tree: a node of the splay tree of
+     * its path, whose inorder is the path from top to bottom. */
+    private static class Node {
+        private final Person person;
+        private Node left, right; // children in the splay tree (null if none)
+
+        /** The parent in the splay tree or, for the root of a splay tree, the
+         * parent (in the SharingTree) of the top of its path (null for root). */
+        private Node parent;
+
+        /** The size of the person's subtree, less the pending additions of
+         * the nodes above this one in its splay tree. */
+        private int size;
+
+        /** An addition to the sizes of the nodes below this one in its splay
+         * tree that has not been made yet. */
+        private int pending;
+
+        /** The top of the path among the nodes of this splay subtree, and its
+         * size less the pending additions of the nodes above this one. */
+        private Node first;
+        private int firstSize;
+
+        /** The next person down the path (null if this is the bottom). */
+        private Node down;
+
+        /** The neighbors of this node in its bucket of tops (null if none)
+         * and its size there (0 if it is not a top). */
+        private Node prevTop, nextTop;
+        private int topSize;
+
+        /** Used by topBySubtreeSize: the size of this node. */
+        private int key;
+
+        /** Constructor: a path of just p, whose subtree has size s. */
+        private Node(Person p, int s) {
+            person= p;
+            size= s;
+            first= this;
+            firstSize= s;
+        }
+
+        /** Return true iff this is the root of its splay tree. */
+        private boolean isRoot() {
+            return parent == null || parent.left != this && parent.right != this;
+        }
+
+        /** Add d to the sizes of the nodes of this splay subtree. */
+        private void add(int d) {
+            size+= d;
+            firstSize+= d;
+            pending+= d;
+        }
+
+        /** Make the pending addition to the children of this node. */
+        private void push() {
+            if (pending == 0) return;
+            if (left != null) left.add(pending);
+            if (right != null) right.add(pending);
+            pending= 0;
+        }
+
+        /** Recompute first and firstSize from the children.
+         * Precondition: there is no pending addition. */
+        private void update() {
+            first= left == null ? this : left.first;
+            firstSize= left == null ? size : left.firstSize;
+        }
+
+        /** Rotate this node above its parent in the splay tree.
+         * Precondition: the parent and this node have no pending addition. */
+        private void rotate() {
+            Node p= parent;
+            Node g= p.parent;
+            boolean pRoot= p.isRoot();
+            if (p.left == this) {
+                p.left= right;
+                if (right != null) right.parent= p;
+                right= p;
+            } else {
+                p.right= left;
+                if (left != null) left.parent= p;
+                left= p;
+            }
+            p.parent= this;
+            parent= g;
+            if (!pRoot) {
+                if (g.left == p) g.left= this;
+                else g.right= this;
+            }
+            p.update();
+            update();
+        }
+    }
+
+    /** The nodes at the tops of paths, in a list for each subtree size, with
+     * a bit set of the sizes whose lists are not empty. */
+    private static class Tops {
+        /** first[s] is the first node with size s (null if none). */
+        private Node[] first= new Node[64];
+
+        /** The sizes s for which first[s] is not null. bits[0] has bit s,
+         * and each next level has a bit for each word of the one before that
+         * is not 0. The last level is one word. */
+        private long[][] bits;
+
+        /** Constructor: an empty set of tops. */
+        private Tops() {
+            clear(64);
+        }
+
+        /** Remove all nodes, and make room for sizes up to n. */
+        private void clear(int n) {
+            first= new Node[Math.max(64, n + 1)];
+            List<long[]> ls= new ArrayList<>();
+            int words= first.length;
+            do {
+                words= (words + 63) >>> 6;
+                ls.add(new long[words]);
+            } while (words > 1);
+            bits= ls.toArray(new long[0][]);
+        }
+
+        /** Add node x, which is not a top, with size s. */
+        private void add(Node x, int s) {
+            if (s >= first.length) grow(s);
+            x.topSize= s;
+            x.prevTop= null;
+            x.nextTop= first[s];
+            if (first[s] != null) {
+                first[s].prevTop= x;
+            } else {
+                // set bit s and, where a word was 0, the bit above it
+                for (long[] level : bits) {
+                    long w= level[s >>> 6];
+                    level[s >>> 6]= w | 1L << s;
+                    if (w != 0) break;
+                    s= s >>> 6;
+                }
+            }
+            first[x.topSize]= x;
+        }
+
+        /** Remove x, which is a top. */
+        private void remove(Node x) {
+            int s= x.topSize;
+            if (x.nextTop != null) x.nextTop.prevTop= x.prevTop;
+            if (x.prevTop != null) {
+                x.prevTop.nextTop= x.nextTop;
+            } else {
+                first[s]= x.nextTop;
+                if (first[s] == null) {
+                    for (long[] level : bits) {
+                        long w= level[s >>> 6] & ~(1L << s);
+                        level[s >>> 6]= w;
+                        if (w != 0) break;
+                        s= s >>> 6;
+                    }
+                }
+            }
+            x.prevTop= null;
+            x.nextTop= null;
+            x.topSize= 0;
+        }
+
+        /** Make room for sizes up to s, keeping the tops. */
+        private void grow(int s) {
+            Node[] old= first;
+            clear(Math.max(s, 2 * old.length));
+            for (int v= 0; v < old.length; v++) {
+                first[v]= old[v];
+                if (old[v] != null) {
+                    for (int l= 0, b= v; l < bits.length; l++, b= b >>> 6) {
+                        bits[l][b >>> 6]|= 1L << b;
+                    }
+                }
+            }
+        }
+
+        /** Return the largest size of a top (-1 if there is none). */
+        private int max() {
+            return prev(first.length);
+        }
+
+        /** Return the largest size of a top that is less than s (-1 if there
+         * is none). Takes time proportional to the number of levels of bits. */
+        private int prev(int s) {
+            int b= s - 1;
+            int l= 0;
+            // Go up until a word has a bit at or before b
+            while (true) {
+                if (b < 0) return -1;
+                long w= bits[l][b >>> 6] & (-1L >>> (63 - (b & 63)));
+                if (w != 0) {
+                    b= (b & ~63) | (63 - Long.numberOfLeadingZeros(w));
+                    break;
+                }
+                b= (b >>> 6) - 1;
+                l++;
+                if (l == bits.length) return -1;
+            }
+            // Go down, taking the last bit of each word
+            while (l > 0) {
+                l--;
+                b= (b << 6) | (63 - Long.numberOfLeadingZeros(bits[l][b]));
+            }
+            return b;
+        }
+    }
+
+    /** An Entry is the place of a Person in a Ranking. */
+    private static class Entry {
+        private final Person person;
+        private Bucket bucket;    // the bucket the entry is in
+        private Entry prev, next; // the neighbors in that bucket (null if none)
+
+        /** Constructor: an entry, in no bucket yet, for p. */
+        private Entry(Person p) {
+            person= p;
+        }
+    }
+
+    /** A Bucket holds the entries with one value, in a doubly linked list. */
+    private static class Bucket {
+        private final int value;
+        private Bucket lower, higher; // the neighboring buckets (null if none)
+        private Entry first;          // the first entry (null if none)
+
+        /** Constructor: an empty bucket for value v. */
+        private Bucket(int v) {
+            value= v;
+        }
+
+        /** Put e, which is in no bucket, into this bucket. */
+        private void push(Entry e) {
+            e.bucket= this;
+            e.prev= null;
+            e.next= first;
+            if (first != null) first.prev= e;
+            first= e;
+        }
+
+        /** Take e, which is in this bucket, out of it. */
+        private void unlink(Entry e) {
+            if (e.prev != null) e.prev.next= e.next;
+            else first= e.next;
+            if (e.next != null) e.next.prev= e.prev;
+        }
+    }
+
+    /** A Ranking is a list of non-empty buckets in increasing order of value. */
+    private static class Ranking {
+        private Bucket lowest, highest; // (null if the ranking is empty)
+
+        /** Add e with value v.
+         * Precondition: e is in no bucket and v is at most the lowest value. */
+        private void addLowest(Entry e, int v) {
+            if (lowest == null || lowest.value != v) {
+                Bucket b= new Bucket(v);
+                b.higher= lowest;
+                if (lowest != null) lowest.lower= b;
+                else highest= b;
+                lowest= b;
+            }
+            lowest.push(e);
+        }
+
+        /** Add e with value v.
+         * Precondition: e is in no bucket and v is at least the highest value. */
+        private void addHighest(Entry e, int v) {
+            if (highest == null || highest.value != v) {
+                Bucket b= new Bucket(v);
+                b.lower= highest;
+                if (highest != null) highest.higher= b;
+                else lowest= b;
+                highest= b;
+            }
+            highest.push(e);
+        }
+
+        /** Add 1 to the value of e, which is in this ranking. */
+        private void increment(Entry e) {
+            Bucket b= e.bucket;
+            Bucket h= b.higher;
+            if (h == null || h.value != b.value + 1) {
+                h= new Bucket(b.value + 1);
+                h.lower= b;
+                h.higher= b.higher;
+                if (b.higher != null) b.higher.lower= h;
+                else highest= h;
+                b.higher= h;
+            }
+            b.unlink(e);
+            if (b.first == null) {
+                if (b.lower != null) b.lower.higher= h;
+                else lowest= h;
+                h.lower= b.lower;
+            }
+            h.push(e);
+        }
+
+        /** Subtract 1 from the value of e, which is in this ranking and has a
+         * value above 0. */
+        private void decrement(Entry e) {
+            Bucket b= e.bucket;
+            Bucket l= b.lower;
+            if (l == null || l.value != b.value - 1) {
+                l= new Bucket(b.value - 1);
+                l.higher= b;
+                l.lower= b.lower;
+                if (b.lower != null) b.lower.higher= l;
+                else lowest= l;
+                b.lower= l;
+            }
+            b.unlink(e);
+            if (b.first == null) {
+                if (b.higher != null) b.higher.lower= l;
+                else highest= l;
+                l.higher= b.higher;
+            }
+            l.push(e);
+        }
+
+        /** Remove e, which is in this ranking. */
+        private void remove(Entry e) {
+            Bucket b= e.bucket;
+            b.unlink(e);
+            e.bucket= null;
+            if (b.first != null) return;
+            if (b.lower != null) b.lower.higher= b.higher;
+            else lowest= b.higher;
+            if (b.higher != null) b.higher.lower= b.lower;
+            else highest= b.lower;
+        }
+
+        /** Remove all entries. */
+        private void clear() {
+            lowest= null;
+            highest= null;
+        }
+    }
+}
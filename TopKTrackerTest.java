@@ -0,0 +1,175 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TopKTrackerTest {
+
+    private static Network n;
+    private static Person[] people;
+
+    @BeforeClass
+    public static void setup(){
+        n= new Network();
+        people= CascadeShape.people(n, 300);
+    }
+
+    @Test
+    public void testSmall() {
+        Network n= new Network();
+        Person a= new Person("A", n, 0), b= new Person("B", n, 0), c= new Person("C", n, 0),
+                d= new Person("D", n, 0), e= new Person("E", n, 0);
+        SharingTree st= new SharingTree(a);
+        st.insert(a, b);
+        TopKTracker t= new TopKTracker(st.getTree(b));
+        st.insert(b, c);
+        st.insert(b, d);
+        st.insert(c, e);
+
+        assertEquals(Arrays.asList(a, b, c), t.topBySubtreeSize(3));
+        assertEquals(Arrays.asList(b), t.topByChildrenCount(1));
+        assertEquals(5, t.topBySubtreeSize(10).size());
+        assertEquals(0, t.topBySubtreeSize(0).size());
+        assertEquals(4, t.subtreeSize(b));
+        assertEquals(2, t.childrenCount(b));
+        assertEquals(0, t.childrenCount(e));
+
+        // A move and a removal change the rankings at once
+        st.reparent(e, a);
+        assertEquals(2, t.childrenCount(a));
+        assertEquals(1, t.subtreeSize(c));
+        st.removeSubtree(b);
+        assertEquals(Arrays.asList(a, e), t.topBySubtreeSize(5));
+        st.insert(e, b);
+        assertEquals(Arrays.asList(a, e, b), t.topBySubtreeSize(5));
+
+        // After close, the rankings stay as they were
+        t.close();
+        st.insert(b, c);
+        assertEquals(1, t.subtreeSize(b));
+        try {
+            t.subtreeSize(c);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            t.topByChildrenCount(-1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /** Compare the rankings with size and getChildrenCount of every node,
+     * while random trees grow, with moves and removals in between. */
+    @Test
+    public void testRandom() {
+        for (long seed= 0; seed < 5; seed++) {
+            Random rnd= new Random(seed);
+            SharingTree st= new SharingTree(people[0]);
+            TopKTracker t= new TopKTracker(st);
+            for (int i= 1; i < people.length; i++) {
+                Person p= people[rnd.nextInt(i)];
+                if (!st.contains(p)) p= people[0];
+                st.insert(p, people[i]);
+                Person q= people[1 + rnd.nextInt(i)];
+                if (i % 37 == 0 && st.contains(q)) st.removeSubtree(q);
+                if (i % 29 == 0 && st.contains(q) && st.getTree(q).getChildrenCount() > 0) {
+                    // Move q's first child up to q's parent
+                    st.reparent(st.getTree(q).getChildren().iterator().next().getRoot(), st.getParent(q));
+                }
+                if (i % 23 == 0) check(st, t, 1 + rnd.nextInt(10));
+            }
+            check(st, t, people.length);
+        }
+    }
+
+    /** A long chain, then many leaves under its middle: every insert changes
+     * the sizes of all people above it, which must not take time per person. */
+    @Test
+    public void testDeepChain() {
+        int n= 100_000;
+        Person[] ps= CascadeShape.people(new Network(), n + 1000);
+        SharingTree st= new SharingTree(ps[0]);
+        TopKTracker t= new TopKTracker(st);
+        for (int i= 1; i < n; i++) {
+            st.insert(ps[i - 1], ps[i]);
+        }
+        for (int i= n; i < ps.length; i++) {
+            st.insert(ps[n / 2], ps[i]);
+        }
+        assertEquals(Arrays.asList(ps[0], ps[1], ps[2]), t.topBySubtreeSize(3));
+        assertEquals(Arrays.asList(ps[n / 2]), t.topByChildrenCount(1));
+        assertEquals(ps.length, t.subtreeSize(ps[0]));
+        assertEquals(n / 2 + 1000, t.subtreeSize(ps[n / 2]));
+        assertEquals(n / 2 - 1, t.subtreeSize(ps[n / 2 + 1]));
+        assertEquals(1, t.subtreeSize(ps[n - 1]));
+        assertEquals(1, t.subtreeSize(ps[n]));
+        List<Person> top= t.topBySubtreeSize(n / 2 + 2);
+        assertEquals(ps[n / 2], top.get(n / 2));
+        assertEquals(ps[n / 2 + 1], top.get(n / 2 + 1));
+    }
+
+    /** Moves and removals on a long chain: each changes the sizes of all
+     * people above it, which must not take time per person. */
+    @Test
+    public void testDeepChainMoves() {
+        int n= 100_000;
+        Person[] ps= CascadeShape.people(new Network(), n + 1);
+        SharingTree st= new SharingTree(ps[0]);
+        TopKTracker t= new TopKTracker(st);
+        for (int i= 1; i < n; i++) {
+            st.insert(ps[i - 1], ps[i]);
+        }
+        Random rnd= new Random(23);
+        Person x= ps[n];
+        st.insert(ps[0], x);
+        for (int round= 0; round < 5_000; round++) {
+            int i= rnd.nextInt(n);
+            if (round % 2 == 0) {
+                st.reparent(x, ps[i]);
+            } else {
+                st.removeSubtree(x);
+                st.insert(ps[i], x);
+            }
+            assertEquals(n + 1, t.subtreeSize(ps[0]));
+            assertEquals(n - i + 1, t.subtreeSize(ps[i]));
+            if (i + 1 < n) assertEquals(n - i - 1, t.subtreeSize(ps[i + 1]));
+            assertEquals(i + 1 < n ? 2 : 1, t.childrenCount(ps[i]));
+            assertEquals(Arrays.asList(ps[0], ps[1]), t.topBySubtreeSize(2));
+        }
+
+        // Cutting off the lower half of the chain
+        st.removeSubtree(ps[n / 2]);
+        assertEquals(st.size(), t.subtreeSize(ps[0]));
+        assertEquals(0, t.childrenCount(ps[n / 2 - 1]));
+        assertEquals(st.size(), t.topBySubtreeSize(n).size());
+    }
+
+    /** Check that t's top k of tree st are right. */
+    private static void check(SharingTree st, TopKTracker t, int k) {
+        List<Person> bySize= t.topBySubtreeSize(k);
+        List<Person> byCount= t.topByChildrenCount(k);
+        assertEquals(Math.min(k, st.size()), bySize.size());
+        assertEquals(bySize.size(), byCount.size());
+
+        // No person outside the top has a larger value than the last one in it
+        int lastSize= st.getTree(bySize.get(bySize.size() - 1)).size();
+        int lastCount= st.getTree(byCount.get(byCount.size() - 1)).getChildrenCount();
+        for (Person p : people) {
+            SharingTree node= st.getTree(p);
+            if (node == null) continue;
+            assertEquals(node.size(), t.subtreeSize(p));
+            assertEquals(node.getChildrenCount(), t.childrenCount(p));
+            if (!bySize.contains(p)) assertTrue(node.size() <= lastSize);
+            if (!byCount.contains(p)) assertTrue(node.getChildrenCount() <= lastCount);
+        }
+        for (int i= 1; i < bySize.size(); i++) {
+            assertTrue(t.subtreeSize(bySize.get(i - 1)) >= t.subtreeSize(bySize.get(i)));
+            assertTrue(t.childrenCount(byCount.get(i - 1)) >= t.childrenCount(byCount.get(i)));
+        }
+    }
+}
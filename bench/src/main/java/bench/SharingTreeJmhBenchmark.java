@@ -0,0 +1,219 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** JMH benchmarks of the SharingTree operations, on trees of each
+ * CascadeShape with 10^3 to 10^6 people (see bench/pom.xml for the build).
+ * Run with: java -jar target/benchmarks.jar [JMH options] [regexps of benchmarks]
+ * which runs main, so the gc profiler is on unless other profilers are
+ * given. Scores are operations per second; the gc profiler adds the
+ * allocation rate per operation (gc.alloc.rate.norm, in bytes). When the
+ * benchmarks are run some other way (e.g. with org.openjdk.jmh.Main), pass
+ * -prof gc to get that rate.
+ * maxWidthImplementationOne takes time proportional to the size times the
+ * depth (hours for a CHAIN of 10^6 people), so it is run on trees of at most
+ * 10^4 people, in NaiveMaxWidth. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations= 3, time= 1)
+@Measurement(iterations= 5, time= 1)
+@Fork(1)
+public class SharingTreeJmhBenchmark {
+
+    /** The number of (pairs of) people that the per-person queries cycle through. */
+    private static final int TARGETS= 1024;
+
+    @Param({"RANDOM", "BALANCED", "STAR", "CHAIN"})
+    public CascadeShape shape;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    /** The people of the tree; people[0] is its root. */
+    private Person[] people;
+
+    /** A tree of shape shape of all of people, and an equal copy of it. */
+    private SharingTree tree;
+    private SharingTree copy;
+
+    /** A subtree of shape shape of all of people (see subtree). */
+    private SharingTree sub;
+
+    /** parents[k] is the index of the parent of people[k] in shape shape. */
+    private int[] parents;
+
+    /** The tree the insert benchmark grows, and the index in people of the
+     * next person it inserts. */
+    private SharingTree growing;
+    private int inserted;
+
+    /** Randomly chosen people of the tree, and the next one to use. */
+    private Person[] targets;
+    private int next;
+
+    /** Make the people, the trees and the targets. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Network net= new Network();
+        people= CascadeShape.people(net, size);
+        tree= shape.build(people, 2110);
+        copy= new SharingTree(tree);
+        parents= parents(shape, size);
+        sub= subtree(people, parents, net);
+        growing= new SharingTree(people[0]);
+        inserted= 1;
+        Random rnd= new Random(15);
+        targets= new Person[2 * TARGETS];
+        for (int k= 0; k < targets.length; k++) {
+            targets[k]= people[rnd.nextInt(size)];
+        }
+    }
+
+    /** Return the parents of the people of a tree of shape shape of n people:
+     * element k is the index of the parent of person k (0 for person 0). */
+    private static int[] parents(CascadeShape shape, int n) {
+        Random rnd= new Random(2110);
+        int[] parents= new int[n];
+        for (int k= 1; k < n; k++) {
+            parents[k]= shape.parent(k, rnd);
+        }
+        return parents;
+    }
+
+    /** Return the subtree with root people[0] of a tree in which the parent
+     * of people[k] is people[parents[k]] for k > 0, and whose root is a new
+     * person of net above people[0]. No whole-tree summary is kept for it. */
+    private static SharingTree subtree(Person[] people, int[] parents, Network net) {
+        SharingTree outer= new SharingTree(new Person("outer", net, 0));
+        outer.insert(outer.getRoot(), people[0]);
+        for (int k= 1; k < people.length; k++) {
+            outer.insert(people[parents[k]], people[k]);
+        }
+        return outer.getTree(people[0]);
+    }
+
+    /** Return the index in targets of the next query's (first) person. */
+    private int nextTarget() {
+        next= (next + 2) & (targets.length - 1);
+        return next;
+    }
+
+    /** One insert into a tree of shape shape that grows to size people and
+     * then starts over with a new tree, so the inserts go into trees of all
+     * sizes up to size. */
+    @Benchmark
+    public SharingTree insert() {
+        if (inserted == size) {
+            growing= new SharingTree(people[0]);
+            inserted= 1;
+        }
+        SharingTree t= growing.insert(people[parents[inserted]], people[inserted]);
+        inserted++;
+        return t;
+    }
+
+    @Benchmark
+    public List<Person> getSharingRoute() {
+        return tree.getSharingRoute(targets[nextTarget()]);
+    }
+
+    /** The routes of all 2 * TARGETS targets in one call (compare with that
+     * many calls of getSharingRoute). */
+    @Benchmark
+    public Map<Person, Person[]> getSharingRoutes() {
+        return tree.getSharingRoutes(Arrays.asList(targets));
+    }
+
+    @Benchmark
+    public Person getSharedAncestor() {
+        int k= nextTarget();
+        return tree.getSharedAncestor(targets[k], targets[k + 1]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return tree.contains(targets[nextTarget()]);
+    }
+
+    @Benchmark
+    public boolean equalsCopy() {
+        return tree.equals(copy);
+    }
+
+    @Benchmark
+    public int maxWidthImplementationTwo() {
+        return SharingTree.maxWidthImplementationTwo(sub);
+    }
+
+    @Benchmark
+    public int maxWidthImplementationThree() {
+        return SharingTree.maxWidthImplementationThree(sub);
+    }
+
+    /** maxWidthImplementationOne, on trees of at most 10^4 people. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations= 3, time= 1)
+    @Measurement(iterations= 5, time= 1)
+    @Fork(1)
+    public static class NaiveMaxWidth {
+        @Param({"RANDOM", "BALANCED", "STAR", "CHAIN"})
+        public CascadeShape shape;
+
+        @Param({"1000", "10000"})
+        public int size;
+
+        /** A subtree of shape shape of size people (see subtree). */
+        private SharingTree sub;
+
+        /** Make the subtree. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            Network net= new Network();
+            sub= subtree(CascadeShape.people(net, size), parents(shape, size), net);
+        }
+
+        @Benchmark
+        public int maxWidthImplementationOne() {
+            return SharingTree.maxWidthImplementationOne(sub);
+        }
+    }
+
+    /** Run the benchmarks given by the JMH command-line options in args
+     * (default: all of them), with the gc profiler for the allocation rate
+     * unless args name other profilers.
+     * E.g. "-p size=1000,10000 contains" runs contains on the two smaller sizes. */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd= new CommandLineOptions(args);
+        ChainedOptionsBuilder opt= new OptionsBuilder().parent(cmd);
+        if (cmd.getIncludes().isEmpty()) opt.include(SharingTreeJmhBenchmark.class.getSimpleName());
+        if (cmd.getProfilers().isEmpty()) opt.addProfiler(GCProfiler.class);
+        new Runner(opt.build()).run();
+    }
+}